@@ -0,0 +1,147 @@
+package art2;
+
+import java.util.Arrays;
+import java.util.List;
+
+import processing.core.PVector;
+
+/**
+ * A grid of the attractors of a Flock, for finding the one nearest to a
+ * MovingThing without measuring the distance to all of them. The grid has
+ * roughly one attractor per cell, and a search looks at rings of cells
+ * around the MovingThing, stopping once no unsearched cell can hold anything
+ * nearer than the best attractor found so far.
+ */
+class AttractorIndex {
+	// Positions of the attractors when the grid was built, the focus first
+	private float[] ax = new float[0];
+	private float[] ay = new float[0];
+	private int count;
+
+	// Grid of cells covering the window. The indices of the attractors in
+	// cell c are items[cellStart[c]] to items[cellStart[c + 1] - 1].
+	private float cellSize;
+	private int cols;
+	private int rows;
+	private int[] cellStart = new int[0];
+	private int[] cellOf = new int[0];
+	private int[] items = new int[0];
+
+	/**
+	 * Sort the focus and attractors of a Flock into the grid.
+	 * 
+	 * @param focus
+	 *            Focus of the Flock, given index 0
+	 * @param attractors
+	 *            Other attractors, given indices from 1
+	 * @param width
+	 *            Width of the window
+	 * @param height
+	 *            Height of the window
+	 */
+	void build(MovingThing focus, List<MovingThing> attractors, int width, int height) {
+		count = attractors.size() + 1;
+		if (ax.length < count) {
+			ax = new float[count];
+			ay = new float[count];
+			cellOf = new int[count];
+			items = new int[count];
+		}
+		int across = (int) Math.ceil(Math.sqrt(count));
+		cellSize = Math.max(Math.max(width, height) / (float) across, 1);
+		cols = Math.max((int) Math.ceil(width / cellSize), 1);
+		rows = Math.max((int) Math.ceil(height / cellSize), 1);
+		if (cellStart.length < cols * rows + 1) {
+			cellStart = new int[cols * rows + 1];
+		}
+		Arrays.fill(cellStart, 0, cols * rows + 1, 0);
+
+		// Counting sort of attractors by cell
+		for (int i = 0; i < count; i++) {
+			PVector pos = (i == 0 ? focus : attractors.get(i - 1)).getPos();
+			ax[i] = pos.x;
+			ay[i] = pos.y;
+			cellOf[i] = col(pos.x) + cols * row(pos.y);
+			cellStart[cellOf[i] + 1]++;
+		}
+		for (int c = 0; c < cols * rows; c++) {
+			cellStart[c + 1] += cellStart[c];
+		}
+		for (int i = 0; i < count; i++) {
+			items[cellStart[cellOf[i]]++] = i;
+		}
+		// The fill above moved each start to the next cell's start
+		for (int c = cols * rows; c > 0; c--) {
+			cellStart[c] = cellStart[c - 1];
+		}
+		cellStart[0] = 0;
+	}
+
+	/**
+	 * Find the attractor nearest to a point.
+	 * 
+	 * @param x
+	 *            X-coordinate
+	 * @param y
+	 *            Y-coordinate
+	 * @return Index of the nearest attractor, 0 for the focus
+	 */
+	int nearest(float x, float y) {
+		int c0 = col(x);
+		int r0 = row(y);
+		int best = 0;
+		float bestDist = Float.MAX_VALUE;
+		int maxRing = Math.max(cols, rows);
+		for (int k = 0; k <= maxRing; k++) {
+			for (int r = r0 - k; r <= r0 + k; r++) {
+				if (r < 0 || r >= rows) {
+					continue;
+				}
+				// Only the edges of the ring are new
+				int step = (r == r0 - k || r == r0 + k) ? 1 : Math.max(2 * k, 1);
+				for (int c = c0 - k; c <= c0 + k; c += step) {
+					if (c < 0 || c >= cols) {
+						continue;
+					}
+					int cell = c + cols * r;
+					for (int j = cellStart[cell]; j < cellStart[cell + 1]; j++) {
+						int i = items[j];
+						float dx = ax[i] - x;
+						float dy = ay[i] - y;
+						float d = dx * dx + dy * dy;
+						if (d < bestDist) {
+							bestDist = d;
+							best = i;
+						}
+					}
+				}
+			}
+			// Every cell beyond ring k is at least k cells away
+			float reach = k * cellSize;
+			if (bestDist <= reach * reach) {
+				break;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * 
+	 * @param x
+	 *            Horizontal coordinate
+	 * @return Column of the grid containing x, clamped to the window
+	 */
+	private int col(float x) {
+		return Math.min(Math.max((int) (x / cellSize), 0), cols - 1);
+	}
+
+	/**
+	 * 
+	 * @param y
+	 *            Vertical coordinate
+	 * @return Row of the grid containing y, clamped to the window
+	 */
+	private int row(float y) {
+		return Math.min(Math.max((int) (y / cellSize), 0), rows - 1);
+	}
+}
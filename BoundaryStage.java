@@ -0,0 +1,76 @@
+package art2;
+
+import processing.core.PVector;
+
+/**
+ * Keeps MovingThings inside the window, either by bouncing them off the edges
+ * or by wrapping them around to the opposite edge.
+ */
+public class BoundaryStage extends ForceStage {
+	/*
+	 * Reverse the velocity of MovingThings about to leave the window.
+	 */
+	public static final int BOUNCE = 0;
+
+	/*
+	 * Move MovingThings which have left the window to the opposite edge.
+	 */
+	public static final int WRAP = 1;
+
+	private int mode;
+
+	/**
+	 * Create a new BoundaryStage.
+	 * 
+	 * @param mode
+	 *            BOUNCE or WRAP
+	 */
+	public BoundaryStage(int mode) {
+		super("boundary");
+		this.mode = mode;
+	}
+
+	public void apply(Flock f, MovingThing m, int i) {
+		PVector pos = m.getPos();
+		PVector v = m.getVelocity();
+		int w = f.getWidth();
+		int h = f.getHeight();
+		if (mode == BOUNCE) {
+			// Turn around anything which would end up outside after moving,
+			// and isn't already heading back in
+			float nx = pos.x + v.x + m.getAcceleration().x;
+			float ny = pos.y + v.y + m.getAcceleration().y;
+			if ((nx < 0 && v.x < 0) || (nx > w && v.x > 0)) {
+				v.x = -v.x;
+				m.getAcceleration().x = 0;
+			}
+			if ((ny < 0 && v.y < 0) || (ny > h && v.y > 0)) {
+				v.y = -v.y;
+				m.getAcceleration().y = 0;
+			}
+		} else if (mode == WRAP) {
+			float dx = pos.x < 0 || pos.x >= w ? -w * (float) Math.floor(pos.x / w) : 0;
+			float dy = pos.y < 0 || pos.y >= h ? -h * (float) Math.floor(pos.y / h) : 0;
+			if (dx != 0 || dy != 0) {
+				m.shift(dx, dy);
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * @param mode
+	 *            BOUNCE or WRAP
+	 */
+	public void setMode(int mode) {
+		this.mode = mode;
+	}
+
+	/**
+	 * 
+	 * @return BOUNCE or WRAP
+	 */
+	public int getMode() {
+		return mode;
+	}
+}
@@ -0,0 +1,175 @@
+package art2;
+
+import java.util.Arrays;
+
+import processing.core.PVector;
+
+/**
+ * Pushes apart MovingThings which overlap each other, like soft balls. To
+ * avoid comparing every pair, positions are sorted into a grid of cells as
+ * wide as a MovingThing at the start of each update, and each MovingThing is
+ * only compared with those in its own and neighbouring cells. Positions are
+ * copied at the same time, so MovingThings which have already moved this
+ * update don't affect the ones which haven't.
+ */
+public class CollisionStage extends ForceStage {
+	// Distance below which two MovingThings push each other apart, and how
+	// hard they push per pixel of overlap
+	private float radius;
+	private float stiffness;
+
+	// Positions at the start of the update
+	private float[] px = new float[0];
+	private float[] py = new float[0];
+
+	// Grid of cells covering the window. The indices of the MovingThings in
+	// cell c are items[cellStart[c]] to items[cellStart[c + 1] - 1].
+	private int cols;
+	private int rows;
+	private int[] cellStart = new int[0];
+	private int[] cellOf = new int[0];
+	private int[] items = new int[0];
+
+	/**
+	 * Create a new CollisionStage.
+	 * 
+	 * @param radius
+	 *            Distance below which MovingThings collide
+	 * @param stiffness
+	 *            Force per pixel of overlap
+	 */
+	public CollisionStage(float radius, float stiffness) {
+		super("collision");
+		this.radius = radius;
+		this.stiffness = stiffness;
+	}
+
+	public void prepare(Flock f) {
+		int n = f.size();
+		if (px.length < n) {
+			px = new float[n];
+			py = new float[n];
+			cellOf = new int[n];
+			items = new int[n];
+		}
+		cols = Math.max((int) Math.ceil(f.getWidth() / radius), 1);
+		rows = Math.max((int) Math.ceil(f.getHeight() / radius), 1);
+		if (cellStart.length < cols * rows + 1) {
+			cellStart = new int[cols * rows + 1];
+		}
+		Arrays.fill(cellStart, 0, cols * rows + 1, 0);
+
+		// Counting sort of MovingThings by cell
+		for (int i = 0; i < n; i++) {
+			MovingThing m = f.getMovingThing(i);
+			PVector pos = m.getPos();
+			px[i] = pos.x;
+			py[i] = pos.y;
+			if (m.isAlive()) {
+				cellOf[i] = cell(col(pos.x), row(pos.y));
+				cellStart[cellOf[i] + 1]++;
+			} else {
+				cellOf[i] = -1;
+			}
+		}
+		for (int c = 0; c < cols * rows; c++) {
+			cellStart[c + 1] += cellStart[c];
+		}
+		for (int i = 0; i < n; i++) {
+			if (cellOf[i] >= 0) {
+				items[cellStart[cellOf[i]]++] = i;
+			}
+		}
+		// The fill above moved each start to the next cell's start
+		for (int c = cols * rows; c > 0; c--) {
+			cellStart[c] = cellStart[c - 1];
+		}
+		cellStart[0] = 0;
+	}
+
+	public void apply(Flock f, MovingThing m, int i) {
+		if (i >= px.length || cellOf[i] < 0) {
+			// Added since prepare()
+			return;
+		}
+		float x = px[i];
+		float y = py[i];
+		int c0 = col(x);
+		int r0 = row(y);
+		float fx = 0;
+		float fy = 0;
+		for (int r = Math.max(r0 - 1, 0); r <= Math.min(r0 + 1, rows - 1); r++) {
+			for (int c = Math.max(c0 - 1, 0); c <= Math.min(c0 + 1, cols - 1); c++) {
+				int cell = cell(c, r);
+				for (int k = cellStart[cell]; k < cellStart[cell + 1]; k++) {
+					int j = items[k];
+					if (j == i) {
+						continue;
+					}
+					float dx = x - px[j];
+					float dy = y - py[j];
+					float d2 = dx * dx + dy * dy;
+					if (d2 < radius * radius && d2 > 0) {
+						float d = (float) Math.sqrt(d2);
+						float push = stiffness * (radius - d) / d;
+						fx += dx * push;
+						fy += dy * push;
+					}
+				}
+			}
+		}
+		if (fx != 0 || fy != 0) {
+			m.applyForce(new PVector(fx, fy));
+		}
+	}
+
+	/**
+	 * 
+	 * @param x
+	 *            Horizontal coordinate
+	 * @return Column of the grid containing x, clamped to the window
+	 */
+	private int col(float x) {
+		return Math.min(Math.max((int) (x / radius), 0), cols - 1);
+	}
+
+	/**
+	 * 
+	 * @param y
+	 *            Vertical coordinate
+	 * @return Row of the grid containing y, clamped to the window
+	 */
+	private int row(float y) {
+		return Math.min(Math.max((int) (y / radius), 0), rows - 1);
+	}
+
+	/**
+	 * 
+	 * @param c
+	 *            Column
+	 * @param r
+	 *            Row
+	 * @return Index of the cell
+	 */
+	private int cell(int c, int r) {
+		return r * cols + c;
+	}
+
+	/**
+	 * 
+	 * @param r
+	 *            Distance below which MovingThings collide
+	 */
+	public void setRadius(float r) {
+		radius = r;
+	}
+
+	/**
+	 * 
+	 * @param s
+	 *            Force per pixel of overlap
+	 */
+	public void setStiffness(float s) {
+		stiffness = s;
+	}
+}
@@ -0,0 +1,20 @@
+package art2;
+
+/**
+ * Slows each MovingThing down with air resistance, unless air resistance has
+ * been turned off for it.
+ */
+public class DragStage extends ForceStage {
+	/**
+	 * Create a new DragStage.
+	 */
+	public DragStage() {
+		super("drag");
+	}
+
+	public void apply(Flock f, MovingThing m, int i) {
+		if (m.getAirResistance()) {
+			m.applyAirResistance(m.getVelocity());
+		}
+	}
+}
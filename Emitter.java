@@ -0,0 +1,199 @@
+package art2;
+
+/**
+ * A source of short-lived MovingThings attached to a Flock. Every update the
+ * Emitter releases spawnRate new MovingThings (fractional rates accumulate
+ * across updates) scattered around its position, each of which lives for a
+ * fixed number of updates and fades out at the end of its life.
+ */
+public class Emitter {
+	// Location new MovingThings are released around, and how far from it they
+	// may be scattered
+	private float x;
+	private float y;
+	private float spread;
+
+	// Number of MovingThings released per update, and the fractional part
+	// carried over from previous updates
+	private float spawnRate;
+	private float owed;
+
+	// Number of updates each MovingThing lives for, and how many of those are
+	// spent fading out
+	private int lifetime;
+	private int fadeOut;
+
+	// Whether or not released MovingThings are connected to the focus
+	private boolean connectToFocus;
+
+	// Whether or not this Emitter is currently releasing anything
+	private boolean enabled;
+
+	/**
+	 * Create a new Emitter.
+	 * 
+	 * @param x
+	 *            X-coordinate to release MovingThings at
+	 * @param y
+	 *            Y-coordinate to release MovingThings at
+	 * @param spawnRate
+	 *            Number of MovingThings released per update
+	 * @param lifetime
+	 *            Number of updates each MovingThing lives for
+	 * @param fadeOut
+	 *            Number of updates at the end of each life spent fading out
+	 */
+	public Emitter(float x, float y, float spawnRate, int lifetime, int fadeOut) {
+		this.x = x;
+		this.y = y;
+		this.spawnRate = spawnRate;
+		this.lifetime = lifetime;
+		this.fadeOut = fadeOut;
+		spread = 0;
+		owed = 0;
+		connectToFocus = true;
+		enabled = true;
+	}
+
+	/**
+	 * Work out how many MovingThings this Emitter releases this update.
+	 * 
+	 * @return Number of MovingThings to release
+	 */
+	int tick() {
+		if (!enabled) {
+			return 0;
+		}
+		owed += spawnRate;
+		int n = (int) owed;
+		owed -= n;
+		return n;
+	}
+
+	/**
+	 * Set the location this Emitter releases MovingThings at.
+	 * 
+	 * @param x
+	 *            Horizontal coordinate
+	 * @param y
+	 *            Vertical coordinate
+	 */
+	public void setPos(float x, float y) {
+		this.x = x;
+		this.y = y;
+	}
+
+	/**
+	 * 
+	 * @return X-coordinate this Emitter releases MovingThings at
+	 */
+	public float getX() {
+		return x;
+	}
+
+	/**
+	 * 
+	 * @return Y-coordinate this Emitter releases MovingThings at
+	 */
+	public float getY() {
+		return y;
+	}
+
+	/**
+	 * Set how far from its location this Emitter may scatter new MovingThings.
+	 * 
+	 * @param s
+	 *            Maximum distance in pixels along each axis
+	 */
+	public void setSpread(float s) {
+		spread = s;
+	}
+
+	/**
+	 * 
+	 * @return Maximum scatter distance in pixels along each axis
+	 */
+	public float getSpread() {
+		return spread;
+	}
+
+	/**
+	 * Set the number of MovingThings released per update.
+	 * 
+	 * @param r
+	 *            Spawn rate, may be fractional
+	 */
+	public void setSpawnRate(float r) {
+		spawnRate = r;
+	}
+
+	/**
+	 * 
+	 * @return Number of MovingThings released per update
+	 */
+	public float getSpawnRate() {
+		return spawnRate;
+	}
+
+	/**
+	 * Set how long MovingThings released from now on will live.
+	 * 
+	 * @param lifetime
+	 *            Number of updates each MovingThing lives for
+	 * @param fadeOut
+	 *            Number of updates at the end of each life spent fading out
+	 */
+	public void setLifetime(int lifetime, int fadeOut) {
+		this.lifetime = lifetime;
+		this.fadeOut = fadeOut;
+	}
+
+	/**
+	 * 
+	 * @return Number of updates each MovingThing lives for
+	 */
+	public int getLifetime() {
+		return lifetime;
+	}
+
+	/**
+	 * 
+	 * @return Number of updates at the end of each life spent fading out
+	 */
+	public int getFadeOut() {
+		return fadeOut;
+	}
+
+	/**
+	 * Set whether or not released MovingThings are connected to the focus.
+	 * 
+	 * @param c
+	 *            Whether or not to connect to the focus
+	 */
+	public void setConnectToFocus(boolean c) {
+		connectToFocus = c;
+	}
+
+	/**
+	 * 
+	 * @return Whether or not released MovingThings are connected to the focus
+	 */
+	public boolean getConnectToFocus() {
+		return connectToFocus;
+	}
+
+	/**
+	 * Toggle whether or not this Emitter is releasing MovingThings.
+	 */
+	public void toggleEnabled() {
+		enabled = !enabled;
+	}
+
+	/**
+	 * 
+	 * @return Whether or not this Emitter is releasing MovingThings
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+}
@@ -1,9 +1,17 @@
 package art2;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 import processing.core.PApplet;
+import processing.core.PGraphics;
 import processing.core.PVector;
+import processing.event.MouseEvent;
 
 /**
  * A collection of MovingThings, all following a common target.
@@ -23,25 +31,86 @@ public class Flock {
 	// noise function computing the position of the focus
 	private float speed = .003f;
 
-	// Spring length and constant ranges
-	private float springLengthMin = 30;
-	private float springLengthMax = 60;
-
-	private float springConstantMin = .005f;
-	private float springConstantMax = .02f;
+	// Spring length and constant ranges, shared by every MovingThing in the
+	// Flock so that changing a range is a single assignment
+	private SpringRange springs = new SpringRange(30, 60, .005f, .02f);
 
 	// Drawing values
 	private int mode = MovingThing.ELLIPSE;
 	private float drawSize = 10;
 
+	// Number of previous positions each MovingThing saves, and whether they
+	// are stored quantized
+	private int trailLength = 10;
+	// Shared storage for quantized trails, or null to store them as PVectors
+	private TrailPool trailPool;
+
+	// Only every drawStride-th MovingThing is drawn, and every
+	// oscillationStride MovingThings share one noise value
+	private int drawStride = 1;
+	private int oscillationStride = 1;
+	// Most previous positions drawn in each TAIL, 0 for all of them
+	private int drawnTrailLength = 0;
+
+	// Time taken by the last update and draw, in nanoseconds, and the
+	// controller which lowers quality when they take too long
+	private long updateNanos;
+	private long drawNanos;
+	private QualityController quality;
+
+	// Attractors other than the focus, the grid used to find the nearest one
+	// to each MovingThing, and how many updates pass between checks of each
+	// MovingThing's nearest attractor
+	private ArrayList<MovingThing> attractors;
+	private AttractorIndex attractorIndex;
+	private int reassignInterval = 10;
+
+	// Positions of the focus and attractors handed to off-heap storage each
+	// update, the focus first
+	private float[] attractorX = new float[1];
+	private float[] attractorY = new float[1];
+
+	// Whether or not settled MovingThings are put to sleep, the speed and
+	// spring stretch below which they count as settled, the number of
+	// updates they must be settled for, how often sleeping MovingThings are
+	// updated, and how far the focus must move in one update to wake
+	// everything
+	private boolean sleeping = false;
+	private float sleepSpeed = .05f;
+	private float sleepStretch = 5;
+	private int sleepDelay = 30;
+	private int sleepInterval = 8;
+	private float wakeDistance = 1;
+	private float lastFocusX;
+	private float lastFocusY;
+	// Whether the focus moved further than wakeDistance this update
+	private boolean focusMoved;
+
+	// Forces applied to every MovingThing each update, in order, and whether
+	// to time each of them separately
+	private ArrayList<ForceStage> stages;
+	private boolean stageTiming = false;
+
 	// Movement values
 	private float size = 3f; // used in weight calculations with forces and
 								// stuff
 	private float maxSpeed = 9;
+	// Magnetic coefficient last given to every MovingThing
+	private float magForce = 1;
 	private float speedThreshold = 0;
 
 	// Flag to determine whether the focus will follow the mouse or not
-	private boolean followMouse = false;
+	private volatile boolean followMouse = false;
+
+	// Queues of commands from other threads, carried out at the start of each
+	// update
+	private List<FlockCommandQueue> inputQueues;
+
+	// Latest mouse position for the focus to move to, packed as two float
+	// bit patterns, or NO_MOUSE if it hasn't moved since the last update.
+	// Only the newest position matters, so each one replaces the last.
+	private static final long NO_MOUSE = -1L;
+	private final AtomicLong mouseTarget = new AtomicLong(NO_MOUSE);
 
 	// The MovingThing that all Things in the Flock will follow
 	private MovingThing focus;
@@ -50,6 +119,29 @@ public class Flock {
 	private ArrayList<MovingThing> allThings;
 	private int numThings;
 
+	// Emitters releasing short-lived MovingThings into this Flock, and a stack
+	// of indices into allThings whose MovingThings have died and can be reused
+	private ArrayList<Emitter> emitters;
+	private int[] freeSlots;
+	private int numFree;
+
+	// Off-heap storage used in place of allThings once enabled, with a
+	// snapshot for drawing from it and the callbacks its update needs
+	private ParticleBuffer store;
+	private FlockSnapshot storeFrame;
+	private ParticleBuffer.Oscillation storeOscillation;
+	private ParticleBuffer.Deaths storeDeaths;
+
+	// Source of every random number this Flock uses, and the number of updates
+	// it has been through, which together with a MovingThing's index decide
+	// that MovingThing's random numbers
+	private FlockRandom rng;
+	private long tick;
+
+	// Number of times reSpring() has been called, so that calling it twice in
+	// one update still picks new lengths
+	private int reSprings;
+
 	// Drawing window
 	private PApplet p;
 
@@ -77,14 +169,40 @@ public class Flock {
 	 *            The PApplet which this Flock will draw to
 	 */
 	public Flock(PApplet p) {
+		this(p, ((long) Float.floatToIntBits(p.random(1)) << 32) ^ Float.floatToIntBits(p.random(1)));
+	}
+
+	/**
+	 * Create a new Flock whose every random choice is derived from a single
+	 * seed. Two Flocks created with the same seed and given the same input
+	 * follow exactly the same trajectories.
+	 * 
+	 * @param p
+	 *            The PApplet which this Flock will draw to
+	 * @param seed
+	 *            Seed for all random numbers used by this Flock
+	 */
+	public Flock(PApplet p, long seed) {
 		this.p = p;
 		width = p.width;
 		height = p.height;
-		focusSeedX = p.random(-1000, 1000);
-		focusSeedY = p.random(-1000, 1000);
+		rng = new FlockRandom(seed);
+		tick = 0;
+		focusSeedX = rng.random(FlockRandom.FOCUS_X, -1, 0, -1000, 1000);
+		focusSeedY = rng.random(FlockRandom.FOCUS_Y, -1, 0, -1000, 1000);
 		this.speed = .003f;
-		this.oscSeed = p.random(-1000, 1000);
+		this.oscSeed = rng.random(FlockRandom.OSCILLATION, -1, 0, -1000, 1000);
 		allThings = new ArrayList<MovingThing>();
+		emitters = new ArrayList<Emitter>();
+		attractors = new ArrayList<MovingThing>();
+		attractorIndex = new AttractorIndex();
+		stages = new ArrayList<ForceStage>();
+		stages.add(new NoiseStage());
+		stages.add(new DragStage());
+		stages.add(new SpringStage());
+		freeSlots = new int[16];
+		numFree = 0;
+		inputQueues = new CopyOnWriteArrayList<FlockCommandQueue>();
 		focus = new MovingThing(new PVector(width / 2, height / 2), new PVector(0, 0), new PVector(0, 0), size,
 				drawSize, maxSpeed, p);
 		numThings = 0;
@@ -108,7 +226,20 @@ public class Flock {
 		focusSeedY = fSeedY;
 		this.speed = speed;
 		this.oscSeed = oscSeed;
+		rng = new FlockRandom(((long) Float.floatToIntBits(fSeedX) << 32) ^ Float.floatToIntBits(fSeedY)
+				^ ((long) Float.floatToIntBits(oscSeed) << 16));
+		tick = 0;
 		allThings = new ArrayList<MovingThing>();
+		emitters = new ArrayList<Emitter>();
+		attractors = new ArrayList<MovingThing>();
+		attractorIndex = new AttractorIndex();
+		stages = new ArrayList<ForceStage>();
+		stages.add(new NoiseStage());
+		stages.add(new DragStage());
+		stages.add(new SpringStage());
+		freeSlots = new int[16];
+		numFree = 0;
+		inputQueues = new CopyOnWriteArrayList<FlockCommandQueue>();
 		focus = new MovingThing(new PVector(width / 2, height / 2), new PVector(0, 0), new PVector(0, 0), size,
 				drawSize, maxSpeed, p);
 		numThings = 0;
@@ -124,17 +255,35 @@ public class Flock {
 	 *            Y-coordinate of the new MovingThing
 	 * @param connectToFocus
 	 *            Whether or not the new object will be connected to the focus
-	 * @return The new MovingThing created
+	 * @return The new MovingThing created, or null if this Flock is stored off
+	 *         the heap
 	 */
 	public MovingThing addConnection(float x, float y, boolean connectToFocus) {
+		if (store != null) {
+			if (store.isFull()) {
+				throw new IllegalStateException("Flock is stored off the heap and full at " + store.capacity()
+						+ " MovingThings; give enableOffHeapStorage() or loadLayout() a larger capacity");
+			}
+			int i = store.add(x, y, PApplet.sqrt(rng.random(FlockRandom.SPRING_LENGTH, numThings, tick)),
+					rng.random(FlockRandom.SPRING_CONSTANT, numThings, tick), connectToFocus);
+			if (connectToFocus) {
+				store.setAttractor(i, nearestAttractor(x, y));
+			}
+			numThings++;
+			return null;
+		}
 		MovingThing m2 = new MovingThing(new PVector(x, y), new PVector(0, 0), new PVector(0, 0), size, drawSize,
 				maxSpeed, p);
 		if (connectToFocus) {
-			m2.addConnection(focus);
+			m2.addConnection(attractor(nearestAttractor(x, y)));
 		}
-		float frac = p.random(0, 1);
-		m2.setSpringLength(PApplet.sqrt(frac) * (springLengthMax - springLengthMin) + springLengthMin);
-		m2.setSpringConstant(p.random(springConstantMin, springConstantMax));
+		m2.setMagForce(magForce);
+		m2.setHistoryLength(trailLength);
+		m2.setQuantizedHistory(trailPool);
+		// Lengths are biased towards the top of the range so MovingThings are
+		// spread evenly over the area around the focus
+		m2.setSpringRange(springs, PApplet.sqrt(rng.random(FlockRandom.SPRING_LENGTH, numThings, tick)),
+				rng.random(FlockRandom.SPRING_CONSTANT, numThings, tick));
 		allThings.add(m2);
 		numThings++;
 		return m2;
@@ -145,9 +294,27 @@ public class Flock {
 	 * anything
 	 */
 	public void draw() {
-		for (int i = 0; i < numThings; i++) {
+		long start = System.nanoTime();
+		if (store != null) {
+			capture(storeFrame);
+			drawSnapshot(storeFrame, storeFrame, 1);
+		} else {
+			drawThings();
+		}
+		drawNanos = System.nanoTime() - start;
+		endFrame();
+	}
+
+	/**
+	 * Draw every living MovingThing stored as an object, skipping as many as
+	 * the draw stride says.
+	 */
+	private void drawThings() {
+		for (int i = 0; i < numThings; i += drawStride) {
 			MovingThing mi = allThings.get(i);
-			drawThing(mi);
+			if (mi.isAlive()) {
+				drawThing(mi);
+			}
 		}
 	}
 
@@ -155,7 +322,8 @@ public class Flock {
 	 * Move the focus one step.
 	 */
 	public void moveFocus() {
-		setWithinWindow(focus, 3 * width * p.noise(focusSeedX) - width, 3 * height * p.noise(focusSeedY) - height);
+		setWithinWindow(focus, 3 * width * rng.noise(FlockRandom.FOCUS_NOISE_X, focusSeedX) - width,
+				3 * height * rng.noise(FlockRandom.FOCUS_NOISE_Y, focusSeedY) - height);
 		focusSeedX += speed;
 		focusSeedY += speed;
 	}
@@ -177,406 +345,1596 @@ public class Flock {
 	 * Flock
 	 */
 	public void update() {
-		if (followMouse) {
-			focus.setPos(p.mouseX, p.mouseY);
-		}
-		for (int i = 0; i < numThings; i++) {
-			MovingThing mi = allThings.get(i);
-			mi.oscillate(2 * p.noise(oscSeed + i) - 1);
-			mi.update();
-			oscSeed += .01;
+		long start = System.nanoTime();
+		drainInput();
+		emit();
+		if (store != null) {
+			reassign();
+			int na = attractors.size() + 1;
+			if (attractorX.length < na) {
+				attractorX = new float[na];
+				attractorY = new float[na];
+			}
+			for (int a = 0; a < na; a++) {
+				PVector pos = attractor(a).getPos();
+				attractorX[a] = pos.x;
+				attractorY[a] = pos.y;
+			}
+			store.step(storeOscillation, attractorX, attractorY, na, springs, mass(), mass(), maxSpeed,
+					storeDeaths);
+			endTick();
+			updateNanos = System.nanoTime() - start;
+			return;
 		}
+		step(false);
+		endTick();
+		updateNanos = System.nanoTime() - start;
 	}
 
 	/**
 	 * Update positions and then draw to the screen.
 	 */
 	public void updateAndDraw() {
-		if (followMouse) {
-			focus.setPos(p.mouseX, p.mouseY);
+		if (store != null) {
+			update();
+			draw();
+			return;
+		}
+		long start = System.nanoTime();
+		drainInput();
+		emit();
+		step(true);
+		endTick();
+		// Drawing is interleaved with updating, so it is all counted as update
+		// time
+		updateNanos = System.nanoTime() - start;
+		drawNanos = 0;
+		endFrame();
+	}
+
+	/**
+	 * Run every MovingThing through the force pipeline, then move it. If
+	 * every stage is fusable and stages aren't being timed, this is a single
+	 * pass over the MovingThings; otherwise each stage gets a pass of its own
+	 * before the MovingThings move.
+	 * 
+	 * @param draw
+	 *            Whether or not to draw each MovingThing after moving it
+	 */
+	private void step(boolean draw) {
+		reassign();
+		if (sleeping) {
+			// Sleepers pulled towards the focus are woken as they are reached
+			// by resting()
+			PVector f = focus.getPos();
+			focusMoved = Math.abs(f.x - lastFocusX) + Math.abs(f.y - lastFocusY) > wakeDistance;
+			lastFocusX = f.x;
+			lastFocusY = f.y;
+		}
+		int nStages = stages.size();
+		boolean fused = !stageTiming;
+		for (int s = 0; s < nStages; s++) {
+			fused &= stages.get(s).isFusable();
+		}
+		if (fused) {
+			for (int s = 0; s < nStages; s++) {
+				stages.get(s).prepare(this);
+			}
+		} else {
+			for (int s = 0; s < nStages; s++) {
+				ForceStage stage = stages.get(s);
+				long start = System.nanoTime();
+				stage.prepare(this);
+				for (int i = 0; i < numThings; i++) {
+					MovingThing mi = allThings.get(i);
+					if (mi.isAlive() && !resting(mi, i)) {
+						stage.apply(this, mi, i);
+					}
+				}
+				stage.setNanos(System.nanoTime() - start);
+			}
 		}
 		for (int i = 0; i < numThings; i++) {
 			MovingThing mi = allThings.get(i);
-			mi.setDrawSize(drawSize);
-			mi.oscillate(2 * p.noise(oscSeed + i) - 1);
-			mi.update();
-			drawThing(mi);
-			oscSeed += .01;
+			if (!mi.isAlive()) {
+				continue;
+			}
+			if (resting(mi, i)) {
+				if (draw && i % drawStride == 0) {
+					mi.setDrawSize(drawSize);
+					drawThing(mi);
+				}
+				continue;
+			}
+			if (fused) {
+				for (int s = 0; s < nStages; s++) {
+					stages.get(s).apply(this, mi, i);
+				}
+			}
+			mi.integrate();
+			if (sleeping) {
+				mi.settle(sleepSpeed, sleepStretch, sleepDelay);
+			}
+			if (!mi.isAlive()) {
+				freeSlot(i);
+			} else if (draw && i % drawStride == 0) {
+				mi.setDrawSize(drawSize);
+				drawThing(mi);
+			}
 		}
 	}
 
 	/**
-	 * Draw the specified MovingThing
 	 * 
 	 * @param mi
-	 *            MovingThing to be drawn
+	 *            MovingThing
+	 * @param i
+	 *            Index of the MovingThing
+	 * @return Whether or not the MovingThing is asleep and should be skipped
+	 *         this update. Each sleeping MovingThing is still updated once
+	 *         every sleepInterval updates, staggered by index, to check
+	 *         whether it should wake, and wakes at once if the focus it is
+	 *         pulled towards has moved or a stage's force reaches it.
 	 */
-	public void drawThing(MovingThing mi) {
-		float speed = mi.getVelocity().mag();
-		if (speed >= speedThreshold) {
-			float hue = speed / mi.getMaxSpeed();
-			int red = (int) (hue * (redMax - redMin)) + redMin;
-			int green = (int) (hue * (greenMax - greenMin)) + greenMin;
-			int blue = (int) (hue * (blueMax - blueMin)) + blueMin;
-			int alpha = (int) (hue * (alphMax - alphMin)) + alphMin;
-			mi.draw(red, green, blue, alpha, mode);
+	private boolean resting(MovingThing mi, int i) {
+		if (!sleeping || !mi.isAsleep() || (i + tick) % sleepInterval == 0) {
+			return false;
+		}
+		if (focusMoved) {
+			for (int c = 0; c < mi.getNumConnections(); c++) {
+				if (mi.getConnected(c) == focus) {
+					mi.wake();
+					return false;
+				}
+			}
 		}
+		for (int s = 0; s < stages.size(); s++) {
+			if (stages.get(s).wakes(this, mi, i)) {
+				mi.wake();
+				return false;
+			}
+		}
+		return true;
 	}
 
 	/**
-	 * Apply magnetic repulsion to each MovingThing from the specified location
-	 * vector.
-	 * 
-	 * @param thing
-	 *            PVector representing location of magnetic force
+	 * Wake every MovingThing in this Flock.
 	 */
-	public void runAwayFrom(PVector thing) {
+	private void wakeAll() {
+		if (store != null) {
+			// Off-heap storage never sleeps
+			return;
+		}
 		for (int i = 0; i < numThings; i++) {
-			MovingThing mi = allThings.get(i);
-			PVector dist = mi.getPos().copy().sub(thing);
-			float dMag = dist.mag() / 10;
-			if (dMag < 2) {
-				float magnitude = 1 / (dMag * dMag);
-				dist.mult(magnitude / dMag);
-				mi.applyForce(dist);
-			}
+			allThings.get(i).wake();
 		}
 	}
 
 	/**
-	 * Apply magnetic repulsion to each MovingThing in this Flock proportional
-	 * to the magnetic coefficient of the MovingThing thing.
-	 * 
-	 * @param thing
-	 *            The MovingThing to run away from.
+	 * Connect a fraction of the MovingThings in this Flock to their nearest
+	 * attractor. Each MovingThing is checked once every reassignInterval
+	 * updates, with the checks staggered so that the same number are done
+	 * each update.
 	 */
-	public void runAwayFrom(MovingThing thing) {
-		for (int i = 0; i < numThings; i++) {
+	private void reassign() {
+		if (attractors.isEmpty()) {
+			return;
+		}
+		attractorIndex.build(focus, attractors, width, height);
+		if (store != null) {
+			for (int i = (int) (tick % reassignInterval); i < numThings; i += reassignInterval) {
+				if (store.isAlive(i) && store.isConnected(i)) {
+					store.setAttractor(i, attractorIndex.nearest(store.getX(i), store.getY(i)));
+				}
+			}
+			return;
+		}
+		for (int i = (int) (tick % reassignInterval); i < numThings; i += reassignInterval) {
 			MovingThing mi = allThings.get(i);
-			PVector dist = mi.getPos().copy().sub(thing.getPos());
-			float dMag = dist.mag() / 10;
-			float mForce = thing.getMagForce();
-			if (dMag < mForce * 2) {
-				float magnitude = 1 / (dMag * dMag);
-				dist.mult(mForce * magnitude / dMag);
-				mi.applyForce(dist);
+			if (mi.isAlive() && mi.getNumConnections() > 0) {
+				PVector pos = mi.getPos();
+				MovingThing a = attractor(attractorIndex.nearest(pos.x, pos.y));
+				if (mi.getConnected(0) != a) {
+					mi.setConnected(0, a);
+					// Its rest position has moved
+					mi.wake();
+				}
 			}
 		}
 	}
 
 	/**
-	 * Set the magnetic coefficient of every MovingThing in this Flock
+	 * Find the attractor nearest to a point, searching every attractor.
 	 * 
-	 * @param m
-	 *            Magnetic coefficient
+	 * @param x
+	 *            X-coordinate
+	 * @param y
+	 *            Y-coordinate
+	 * @return Index of the nearest attractor as used by attractor(), 0 for the
+	 *         focus
 	 */
-	public void setMagForce(float m) {
-		for (int i = 0; i < numThings; i++) {
-			allThings.get(i).setMagForce(m);
+	private int nearestAttractor(float x, float y) {
+		PVector pos = new PVector(x, y);
+		int best = 0;
+		float bestDist = focus.getPos().dist(pos);
+		for (int i = 0; i < attractors.size(); i++) {
+			float d = attractors.get(i).getPos().dist(pos);
+			if (d < bestDist) {
+				bestDist = d;
+				best = i + 1;
+			}
 		}
+		return best;
 	}
 
 	/**
-	 * Sanitize the coordinates (x,y) so that they are within the window using
-	 * modulo arithmetic and then move the specified MovingThing to those
-	 * coordinates.
 	 * 
-	 * @param f
-	 *            MovingThing to move
-	 * @param x
-	 *            X-coordinate of target location
-	 * @param y
-	 *            Y-coordinate of target location
+	 * @param i
+	 *            Index given by the AttractorIndex
+	 * @return The focus if i is 0, otherwise the attractor at index i - 1
 	 */
-	public void setWithinWindow(MovingThing f, float x, float y) {
-		if (x < 0) {
-			x = -1 * x;
-		}
-		if (x > width) {
-			x = width - (x % width);
-		}
-		if (y < 0) {
-			y = -1 * y;
-		}
-		if (y > height) {
-			y = height - (y % height);
-		}
-		f.setPos(x, y);
+	private MovingThing attractor(int i) {
+		return i == 0 ? focus : attractors.get(i - 1);
 	}
 
 	/**
-	 * Change the draw mode of this Flock to a different mode.
+	 * End a frame whose drawing was done elsewhere, as by a FlockSimulation
+	 * drawing on the PApplet's thread while this Flock updates on another.
+	 * Updating and drawing run side by side, so the frame takes as long as
+	 * the slower of the two.
+	 * 
+	 * @param drawTime
+	 *            Time taken by the most recent draw, in nanoseconds
 	 */
-	public void toggleMode() {
-		if (mode == MovingThing.TAIL) {
-			mode = 0;
-		} else {
-			mode++;
+	void endFrame(long drawTime) {
+		drawNanos = drawTime;
+		if (quality != null) {
+			quality.frame(this, Math.max(updateNanos, drawNanos));
 		}
 	}
 
 	/**
-	 * Set the draw mode of this Flock to the specified mode
-	 * 
-	 * @param m
-	 *            Mode to change to
+	 * Let the QualityController, if any, look at the frame just drawn.
 	 */
-	public void setMode(int m) {
-		mode = m;
+	private void endFrame() {
+		if (quality != null) {
+			quality.frame(this, updateNanos + drawNanos);
+		}
 	}
 
 	/**
-	 * Get the lower bound of the spring constant range for this Flock
+	 * Get the strength of the oscillating force on the MovingThing at index i
+	 * this update. Only depends on i and the seed at the start of the update,
+	 * so MovingThings can be updated in any order.
 	 * 
-	 * @return Minimum spring constant
+	 * @param i
+	 *            Index of the MovingThing
+	 * @return Oscillation coefficient between -1 and 1
 	 */
-	public float getSpringConstantMin() {
-		return springConstantMin;
+	float oscillation(int i) {
+		// Each MovingThing's noise seed drifts by .01 per MovingThing per
+		// update, as if one seed were stepped past every MovingThing in turn
+		if (oscillationStride > 1) {
+			i -= i % oscillationStride;
+		}
+		return 2 * rng.noise(FlockRandom.OSCILLATION_NOISE, oscSeed + 1.01f * i) - 1;
 	}
 
 	/**
-	 * Get the upper bound of the spring constant range for this Flock
 	 * 
-	 * @return Maximum spring constant
+	 * @return The mass, and area, of each MovingThing in this Flock
 	 */
-	public float getSpringConstantMax() {
-		return springConstantMax;
+	private float mass() {
+		// Same sphere assumption as MovingThing
+		return size * size / 4 * (float) Math.PI;
 	}
 
 	/**
-	 * Increase the range of spring constants by decreasing the lower bound and
-	 * maintaining the upper bound.
+	 * Move every MovingThing in this Flock into off-heap storage, and store
+	 * any added from now on there too. Keeps the heap small for very large
+	 * Flocks. Once enabled, addConnection() returns null and getMovingThing()
+	 * returns a copy which is not part of the Flock.
+	 * 
+	 * Off-heap storage only applies noise, drag and springs. It cannot be
+	 * enabled while the Flock has other force stages or a flow field, or is
+	 * sleeping, and once enabled none of those nor the trail settings can be
+	 * changed.
+	 * 
+	 * @param capacity
+	 *            Maximum number of MovingThings the Flock can hold, at least
+	 *            the number it has now
+	 * @throws IllegalArgumentException
+	 *             If capacity is less than the number of MovingThings
+	 * @throws IllegalStateException
+	 *             If the Flock uses something off-heap storage cannot do
 	 */
-	public void increaseSpringConstRange() {
-		springConstantMin /= 1.1;
-		for (int i = 0; i < numThings; i++) {
-			allThings.get(i).setSpringConstant(p.random(springConstantMin, springConstantMax));
+	public void enableOffHeapStorage(int capacity) {
+		if (store != null) {
+			return;
+		}
+		if (capacity < numThings) {
+			throw new IllegalArgumentException(
+					"Capacity " + capacity + " is less than the " + numThings + " MovingThings in the Flock");
 		}
+		checkStorable();
+		useStore(copyToBuffer(capacity));
 	}
 
 	/**
-	 * Decrease the range of spring constants by increasing the lower bound and
-	 * mainting the upper bound.
+	 * Make sure this Flock uses nothing which off-heap storage cannot do.
+	 * 
+	 * @throws IllegalStateException
+	 *             If it has force stages other than noise, drag and springs,
+	 *             or is sleeping
 	 */
-	public void decreaseSpringConstRange() {
-		springConstantMin *= 1.1;
-		if (springConstantMin > springConstantMax) {
-			springConstantMin = springConstantMax;
+	private void checkStorable() {
+		if (!hasDefaultPipeline()) {
+			throw new IllegalStateException(
+					"Off-heap storage only applies noise, drag and springs; remove the other force stages first");
 		}
-		for (int i = 0; i < numThings; i++) {
-			allThings.get(i).setSpringConstant(p.random(springConstantMin, springConstantMax));
+		if (sleeping) {
+			throw new IllegalStateException("Off-heap storage cannot sleep; call setSleeping(false) first");
 		}
 	}
 
 	/**
-	 * Set the lower bound for spring constants in this Flock.
+	 * Make sure this Flock's MovingThings are stored as objects.
 	 * 
-	 * @param s
-	 *            Minimum spring constant
+	 * @param what
+	 *            What needs them to be, for the exception message
+	 * @throws IllegalStateException
+	 *             If they are stored off the heap
 	 */
-	public void setSpringConstantMin(float s) {
-		springConstantMin = s;
-		for (int i = 0; i < numThings; i++) {
-			allThings.get(i).setSpringConstant(p.random(springConstantMin, springConstantMax));
+	private void checkNotStored(String what) {
+		if (store != null) {
+			throw new IllegalStateException(what + " needs MovingThings stored as objects, not off the heap");
 		}
 	}
 
 	/**
-	 * Set the upper bound for spring constants in this Flock.
+	 * Copy every MovingThing in this Flock into new off-heap storage.
 	 * 
-	 * @param s
-	 *            Maximum spring constant
+	 * @param capacity
+	 *            Maximum number of MovingThings the storage can hold
+	 * @return The new storage
 	 */
-	public void setSpringConstantMax(float s) {
-		springConstantMax = s;
+	private ParticleBuffer copyToBuffer(int capacity) {
+		ParticleBuffer b = new ParticleBuffer(capacity, trailLength);
 		for (int i = 0; i < numThings; i++) {
-			allThings.get(i).setSpringConstant(p.random(springConstantMin, springConstantMax));
+			MovingThing mi = allThings.get(i);
+			b.add(mi);
+			if (mi.getNumConnections() > 0) {
+				// indexOf gives -1 for the focus
+				b.setAttractor(i, attractors.indexOf(mi.getConnected(0)) + 1);
+			}
 		}
+		return b;
 	}
 
 	/**
-	 * Set the lower bound for spring lengths in this Flock.
+	 * Replace the MovingThings in this Flock with those in off-heap storage.
 	 * 
-	 * @param d
-	 *            Minimum spring length
+	 * @param b
+	 *            Storage to use
 	 */
-	public void setSpringLengthMin(float d) {
-		springLengthMin = d;
+	private void useStore(ParticleBuffer b) {
+		allThings.clear();
+		if (trailPool != null) {
+			// Nothing is left in the old pool
+			trailPool = new TrailPool(trailLength, 1);
+		}
+		numThings = b.size();
+		storeFrame = new FlockSnapshot(Math.max(numThings, 16));
+		storeOscillation = new ParticleBuffer.Oscillation() {
+			public float at(int i) {
+				return oscillation(i);
+			}
+		};
+		storeDeaths = new ParticleBuffer.Deaths() {
+			public void died(int i) {
+				freeSlot(i);
+			}
+		};
+		store = b;
 	}
 
 	/**
-	 * Set the upper bound for spring lengths in this Flock.
+	 * Save every MovingThing in this Flock to a layout file, which
+	 * loadLayout() can start a Flock from, along with the positions of its
+	 * attractors. A layout saved after warmUp() lets a large Flock start
+	 * already settled.
 	 * 
-	 * @param d
-	 *            Maximum spring length
+	 * @param file
+	 *            File to write
+	 * @throws IOException
+	 *             If writing fails
 	 */
-	public void setSpringLengthMax(float d) {
-		springLengthMax = d;
+	public void saveLayout(File file) throws IOException {
+		float[] a = new float[2 * attractors.size()];
+		for (int i = 0; i < attractors.size(); i++) {
+			PVector pos = attractors.get(i).getPos();
+			a[2 * i] = pos.x;
+			a[2 * i + 1] = pos.y;
+		}
+		if (store != null) {
+			store.save(file, a);
+			return;
+		}
+		copyToBuffer(Math.max(numThings, 1)).save(file, a);
 	}
 
 	/**
-	 * Return the average position of all MovingThings in this flock. If the
-	 * flock is empty, return the position of the focus.
+	 * Replace the MovingThings in this Flock with those in a layout file
+	 * written by saveLayout(), stored off the heap. No MovingThing objects are
+	 * created, and if capacity is no more than the number of MovingThings in
+	 * the file, the file is mapped into memory rather than read. A mapped
+	 * Flock has no spare room: emitters only refill the slots of MovingThings
+	 * which die, and addConnection() throws an IllegalStateException.
 	 * 
-	 * @return PVector representing average location of the Flock
+	 * The Flock stays off the heap afterwards, with the same limits as after
+	 * enableOffHeapStorage(): only noise, drag and springs are applied, it
+	 * cannot sleep, force stages, flow fields and trail settings cannot be
+	 * changed, getMovingThing() returns a copy and addConnection() returns
+	 * null when there is room. The attractors saved with the layout replace
+	 * this Flock's own, as new MovingThings moved by the caller. A layout
+	 * saved before attractors were kept leaves them alone, and MovingThings
+	 * following an attractor this Flock doesn't have follow the focus.
+	 * 
+	 * @param file
+	 *            File to load
+	 * @param capacity
+	 *            Maximum number of MovingThings the Flock can hold, or 0 for
+	 *            exactly the number in the file
+	 * @throws IOException
+	 *             If the file cannot be read
+	 * @throws IllegalStateException
+	 *             If the Flock uses something off-heap storage cannot do, as
+	 *             for enableOffHeapStorage()
 	 */
-	public PVector getAveragePos() {
-		PVector avg = new PVector(0, 0);
-		if (numThings >= 1) {
-			for (int i = 0; i < numThings; i++) {
-				avg.add(allThings.get(i).getPos());
+	public void loadLayout(File file, int capacity) throws IOException {
+		checkStorable();
+		ParticleBuffer b = ParticleBuffer.load(file, capacity);
+		trailLength = b.getHistoryLength();
+		numFree = 0;
+		useStore(b);
+		float[] a = b.getLayoutAttractors();
+		if (a != null) {
+			attractors.clear();
+			for (int i = 0; i < a.length / 2; i++) {
+				addAttractor(a[2 * i], a[2 * i + 1]);
+			}
+		}
+		for (int i = 0; i < numThings; i++) {
+			if (!b.isAlive(i)) {
+				freeSlot(i);
+			} else if (b.getAttractor(i) > attractors.size()) {
+				b.setAttractor(i, 0);
 			}
-			avg.div(numThings);
-		} else {
-			avg.set(focus.getPos());
 		}
-		return avg;
 	}
 
 	/**
-	 * Get the lower bound for all spring lengths in this Flock.
+	 * Run a number of updates, drawing after each one into an offscreen
+	 * buffer rather than the window, both directly and from a snapshot as a
+	 * FlockSimulation does. Run in setup(), this lets the JIT compiler
+	 * optimize the update and draw code before the first frame, and gets
+	 * MovingThings past the first few updates in which they aren't drawn. A
+	 * headless PApplet has nothing to draw with, so only updates are run.
 	 * 
-	 * @return Minimum spring length
+	 * @param ticks
+	 *            Number of updates to run
 	 */
-	public float getSpringLengthMin() {
-		return springLengthMin;
+	public void warmUp(int ticks) {
+		FlockSnapshot s = new FlockSnapshot(Math.max(numThings, 16));
+		PGraphics screen = p.g;
+		PGraphics offscreen = screen == null ? null : p.createGraphics(width, height);
+		if (offscreen != null) {
+			offscreen.beginDraw();
+			p.g = offscreen;
+		}
+		try {
+			for (int t = 0; t < ticks; t++) {
+				update();
+				capture(s);
+				if (offscreen != null) {
+					if (store == null) {
+						drawThings();
+					}
+					drawSnapshot(s, s, 1);
+				}
+			}
+		} finally {
+			if (offscreen != null) {
+				offscreen.endDraw();
+				p.g = screen;
+			}
+		}
 	}
 
 	/**
-	 * Get the upper bound for all spring lengths in this Flock.
 	 * 
-	 * @return Maximum spring length
+	 * @return The off-heap storage holding this Flock's MovingThings, or null
+	 *         if they are ordinary objects
 	 */
-	public float getSpringLengthMax() {
-		return springLengthMax;
+	public ParticleBuffer getOffHeapStorage() {
+		return store;
 	}
 
 	/**
-	 * Recalculate the lengths of all springs connecting MovingThings in this
-	 * Flock to the focus. Spring lengths are distributed uniformly along the
-	 * interval [springLengthMin, springLengthMax].
+	 * 
+	 * @return The seed of the oscillation noise for the next update
 	 */
-	public void reSpring() {
-		for (int i = 0; i < numThings; i++) {
-			float frac = p.random(0, 1);
-			allThings.get(i)
-					.setSpringLength(PApplet.sqrt(frac) * (springLengthMax - springLengthMin) + springLengthMin);
-		}
+	float getOscillationSeed() {
+		return oscSeed;
 	}
 
 	/**
-	 * Increase the range of spring lengths in this Flock and reassign spring
-	 * lengths to each MovingThing.
+	 * Advance the per-update state once every MovingThing has been updated.
 	 */
-	public void increaseSpringLengthRange() {
-		springLengthMin -= 10;
-		if (springLengthMin < 0) {
-			springLengthMin = 0;
-		}
-		springLengthMax += 10;
-		reSpring();
+	private void endTick() {
+		oscSeed += .01f * numThings;
+		tick++;
 	}
 
 	/**
-	 * Decrease the range of spring lengths in this Flock and reassign spring
-	 * lengths to each MovingThing.
+	 * Carry out every command posted to this Flock's input queues since the
+	 * last update.
 	 */
-	public void decreaseSpringLengthRange() {
-		if (springLengthMax - springLengthMin < 20) {
-			springLengthMin -= 10;
-			springLengthMax -= 10;
-			if (springLengthMin < 0) {
-				springLengthMin = 0;
-			}
-			if (springLengthMax < 0) {
-				springLengthMax = 0;
-			}
-		} else {
-			springLengthMin += 10;
-			springLengthMax -= 10;
+	private void drainInput() {
+		if (mouseTarget.get() != NO_MOUSE) {
+			long m = mouseTarget.getAndSet(NO_MOUSE);
+			focus.setPos(Float.intBitsToFloat((int) (m >>> 32)), Float.intBitsToFloat((int) m));
+		}
+		for (int i = 0; i < inputQueues.size(); i++) {
+			inputQueues.get(i).drain(this);
 		}
-		reSpring();
 	}
 
 	/**
-	 * Remove the last MovingThing added to this Flock.
+	 * Carry out a single command taken from an input queue.
+	 * 
+	 * @param type
+	 *            Type of command, one of the FlockCommandQueue constants
+	 * @param a
+	 *            First argument
+	 * @param b
+	 *            Second argument
+	 * @param c
+	 *            Third argument
 	 */
-	public void removeLastThing() {
-		if (numThings > 0) {
-			allThings.remove(numThings - 1);
-			numThings--;
+	void apply(int type, float a, float b, float c) {
+		switch (type) {
+		case FlockCommandQueue.MOVE_FOCUS:
+			focus.setPos(a, b);
+			break;
+		case FlockCommandQueue.REPULSE:
+			repel(a, b, c);
+			break;
+		case FlockCommandQueue.SET_FOCUS_SPEED:
+			setFocusSpeed(a);
+			break;
+		case FlockCommandQueue.SET_DRAW_SIZE:
+			setDrawSize(a);
+			break;
+		case FlockCommandQueue.SET_SPEED_THRESHOLD:
+			setSpeedThreshold(a);
+			break;
+		case FlockCommandQueue.SET_MAG_FORCE:
+			setMagForce(a);
+			break;
+		case FlockCommandQueue.SET_SPRING_LENGTH_RANGE:
+			springs.setLengthMin(a);
+			springs.setLengthMax(b);
+			break;
+		case FlockCommandQueue.SET_SPRING_CONSTANT_RANGE:
+			springs.setConstantMin(a);
+			springs.setConstantMax(b);
+			break;
+		case FlockCommandQueue.SET_MODE:
+			setMode((int) a);
+			break;
+		case FlockCommandQueue.SET_RED_RANGE:
+			redMin = (int) a;
+			redMax = (int) b;
+			break;
+		case FlockCommandQueue.SET_GREEN_RANGE:
+			greenMin = (int) a;
+			greenMax = (int) b;
+			break;
+		case FlockCommandQueue.SET_BLUE_RANGE:
+			blueMin = (int) a;
+			blueMax = (int) b;
+			break;
+		case FlockCommandQueue.SET_ALPHA_RANGE:
+			setAlphaRange((int) a, (int) b);
+			break;
+		case FlockCommandQueue.SET_OSCILLATION_SEED:
+			oscSeed = a;
+			break;
 		}
 	}
 
 	/**
-	 * Set the draw size of each MovingThing in this flock
+	 * Create a new queue which one other thread can use to send commands to
+	 * this Flock without touching it directly. Commands are carried out at the
+	 * start of the next update.
 	 * 
-	 * @param s
-	 *            Desired radius of each MovingThing
+	 * @param capacity
+	 *            Maximum number of commands waiting at once
+	 * @return The new queue
 	 */
-	public void setDrawSize(float s) {
-		drawSize = s;
+	public FlockCommandQueue createInputQueue(int capacity) {
+		FlockCommandQueue q = new FlockCommandQueue(capacity);
+		inputQueues.add(q);
+		return q;
 	}
 
 	/**
-	 * Get the draw size of each MovingThing in this flock
+	 * Stop taking commands from a queue created by createInputQueue().
 	 * 
-	 * @return Radius in pixels
+	 * @param q
+	 *            Queue to remove
 	 */
-	public float getDrawSize() {
-		return drawSize;
+	public void removeInputQueue(FlockCommandQueue q) {
+		inputQueues.remove(q);
 	}
 
 	/**
-	 * Toggle whether or not the focus of this Flock follows the mouse.
+	 * Receive mouse events from the PApplet, which only sends them while the
+	 * focus is following the mouse. Each movement replaces the last as the
+	 * position the focus moves to at the start of the next update, instead
+	 * of the mouse being read during the update.
+	 * 
+	 * @param e
+	 *            Mouse event
 	 */
-	public void toggleFollowMouse() {
-		followMouse = !followMouse;
+	public void mouseEvent(MouseEvent e) {
+		if (followMouse && (e.getAction() == MouseEvent.MOVE || e.getAction() == MouseEvent.DRAG)) {
+			moveFocusToMouse(e.getX(), e.getY());
+		}
 	}
 
 	/**
-	 * Set the speed which the focus moves at.
+	 * Set the position the focus moves to at the start of the next update,
+	 * replacing any set since the last update.
 	 * 
-	 * @param s
-	 *            The amount by which the seed for the noise function
-	 *            determining the position of the focus changes each update
+	 * @param x
+	 *            X-coordinate of the mouse
+	 * @param y
+	 *            Y-coordinate of the mouse
 	 */
-	public void setFocusSpeed(float s) {
-		speed = s;
+	private void moveFocusToMouse(float x, float y) {
+		mouseTarget.set(((long) Float.floatToIntBits(x) << 32) | (Float.floatToIntBits(y) & 0xffffffffL));
 	}
 
 	/**
-	 * Get the speed which the focus moves at.
-	 * 
-	 * @return The amount by which the seed for the noise function determining
-	 *         the position of the focus changes each update
+	 * Stop receiving events from the PApplet. Call when this Flock is no
+	 * longer needed, so the PApplet doesn't keep it alive.
 	 */
-	public float getFocusSpeed() {
-		return speed;
+	public void dispose() {
+		if (followMouse) {
+			toggleFollowMouse();
+		}
 	}
 
 	/**
-	 * Set the focus to the specified MovingThing.
-	 * 
+	 * Release new MovingThings from each Emitter, reusing the slots of dead
+	 * MovingThings before growing the Flock. Every MovingThing released is
+	 * connected as its Emitter says, whatever was in its slot before. Off-heap storage which is full
+	 * releases nothing more until some MovingThings die.
+	 */
+	private void emit() {
+		for (int e = 0; e < emitters.size(); e++) {
+			Emitter em = emitters.get(e);
+			int n = em.tick();
+			for (int j = 0; j < n; j++) {
+				int i = takeFreeSlot();
+				long key = i < 0 ? numThings : i;
+				float x = em.getX() + rng.random(FlockRandom.SPAWN_X, key, tick, -em.getSpread(), em.getSpread());
+				float y = em.getY() + rng.random(FlockRandom.SPAWN_Y, key, tick, -em.getSpread(), em.getSpread());
+				if (store != null) {
+					if (i < 0 && store.isFull()) {
+						// No room left for new MovingThings until some die
+						return;
+					}
+					if (i < 0) {
+						addConnection(x, y, em.getConnectToFocus());
+						i = numThings - 1;
+					} else {
+						// The slot may have been freed by another Emitter's
+						// MovingThing, connected differently
+						store.respawn(i, x, y);
+						store.setConnected(i, em.getConnectToFocus());
+						if (em.getConnectToFocus()) {
+							store.setAttractor(i, nearestAttractor(x, y));
+						}
+					}
+					store.setLifetime(i, em.getLifetime(), em.getFadeOut());
+					continue;
+				}
+				MovingThing m;
+				if (i < 0) {
+					m = addConnection(x, y, em.getConnectToFocus());
+				} else {
+					m = allThings.get(i);
+					m.respawn(x, y);
+					m.clearConnections();
+					if (em.getConnectToFocus()) {
+						m.addConnection(attractor(nearestAttractor(x, y)));
+					}
+				}
+				m.setLifetime(em.getLifetime(), em.getFadeOut());
+			}
+		}
+	}
+
+	/**
+	 * Remember that the MovingThing at index i has died so its slot can be
+	 * reused.
+	 * 
+	 * @param i
+	 *            Index of the dead MovingThing
+	 */
+	private void freeSlot(int i) {
+		if (numFree == freeSlots.length) {
+			freeSlots = Arrays.copyOf(freeSlots, numFree * 2);
+		}
+		freeSlots[numFree++] = i;
+	}
+
+	/**
+	 * Find a dead MovingThing which can be brought back to life.
+	 * 
+	 * @return Index of a dead MovingThing, or -1 if there are none
+	 */
+	private int takeFreeSlot() {
+		while (numFree > 0) {
+			int i = freeSlots[--numFree];
+			// Slots past the end have been removed by removeLastThing
+			if (i < numThings && (store != null ? !store.isAlive(i) : !allThings.get(i).isAlive())) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Draw the specified MovingThing
+	 * 
+	 * @param mi
+	 *            MovingThing to be drawn
+	 */
+	public void drawThing(MovingThing mi) {
+		float speed = mi.getVelocity().mag();
+		if (speed >= speedThreshold) {
+			float hue = speed / mi.getMaxSpeed();
+			int red = (int) (hue * (redMax - redMin)) + redMin;
+			int green = (int) (hue * (greenMax - greenMin)) + greenMin;
+			int blue = (int) (hue * (blueMax - blueMin)) + blueMin;
+			int alpha = (int) (mi.getFade() * ((int) (hue * (alphMax - alphMin)) + alphMin));
+			mi.draw(red, green, blue, alpha, mode, drawnTrailLength);
+		}
+	}
+
+	/**
+	 * Copy the current state of every MovingThing into a snapshot which other
+	 * threads can read while this Flock keeps updating.
+	 * 
+	 * @param s
+	 *            Snapshot to fill in
+	 */
+	public void capture(FlockSnapshot s) {
+		if (store != null) {
+			store.capture(s);
+		} else {
+			captureThings(s);
+		}
+		s.setFrame(focus.getPos().x, focus.getPos().y, tick, System.nanoTime());
+		captureStyle(s);
+	}
+
+	/**
+	 * Copy this Flock's drawing settings into a snapshot, so that drawing it
+	 * later on another thread uses the settings it was taken with.
+	 * 
+	 * @param s
+	 *            Snapshot to fill in
+	 */
+	void captureStyle(FlockSnapshot s) {
+		int trail = drawnTrailLength > 0 ? Math.min(drawnTrailLength, trailLength) : trailLength;
+		s.setStyle(mode, drawSize, drawStride, maxSpeed, speedThreshold, trail);
+		s.setColorRangeRGBA(redMin, redMax, greenMin, greenMax, blueMin, blueMax, alphMin, alphMax);
+	}
+
+	/**
+	 * Copy the current state of every MovingThing object into a snapshot.
+	 * 
+	 * @param s
+	 *            Snapshot to fill in
+	 */
+	private void captureThings(FlockSnapshot s) {
+		s.ensureCapacity(numThings);
+		for (int i = 0; i < numThings; i++) {
+			MovingThing mi = allThings.get(i);
+			PVector pos = mi.getPos();
+			PVector v = mi.getVelocity();
+			// Same 5 update buffer as MovingThing.draw()
+			s.set(i, pos.x, pos.y, v.x, v.y, mi.isAlive() && mi.getAge() >= 5 ? mi.getFade() : 0);
+		}
+		s.setCount(numThings);
+	}
+
+	/**
+	 * Draw a blend of two snapshots of this Flock using the colors and draw
+	 * mode b was taken with. Entries present in only one of the snapshots are
+	 * drawn as they are in b.
+	 * 
+	 * @param a
+	 *            Earlier snapshot
+	 * @param b
+	 *            Later snapshot
+	 * @param t
+	 *            How far from a to b to draw, between 0 and 1
+	 */
+	public void drawSnapshot(FlockSnapshot a, FlockSnapshot b, float t) {
+		int mode = b.getMode();
+		int trail = b.getTrailLength();
+		float drawSize = b.getDrawSize();
+		float maxSpeed = b.getMaxSpeed();
+		float speedThreshold = b.getSpeedThreshold();
+		int redMin = b.getColorRange(0);
+		int redMax = b.getColorRange(1);
+		int greenMin = b.getColorRange(2);
+		int greenMax = b.getColorRange(3);
+		int blueMin = b.getColorRange(4);
+		int blueMax = b.getColorRange(5);
+		int alphMin = b.getColorRange(6);
+		int alphMax = b.getColorRange(7);
+		int blended = Math.min(a.getCount(), b.getCount());
+		for (int i = 0; i < b.getCount(); i += b.getDrawStride()) {
+			float fade = b.getFade(i);
+			if (fade <= 0) {
+				continue;
+			}
+			float x = b.getX(i);
+			float y = b.getY(i);
+			float vx = b.getVX(i);
+			float vy = b.getVY(i);
+			if (i < blended && a.getFade(i) > 0) {
+				x = a.getX(i) + t * (x - a.getX(i));
+				y = a.getY(i) + t * (y - a.getY(i));
+				vx = a.getVX(i) + t * (vx - a.getVX(i));
+				vy = a.getVY(i) + t * (vy - a.getVY(i));
+			}
+			float speed = PApplet.sqrt(vx * vx + vy * vy);
+			if (speed < speedThreshold) {
+				continue;
+			}
+			float hue = speed / maxSpeed;
+			int red = (int) (hue * (redMax - redMin)) + redMin;
+			int green = (int) (hue * (greenMax - greenMin)) + greenMin;
+			int blue = (int) (hue * (blueMax - blueMin)) + blueMin;
+			int alpha = (int) (fade * ((int) (hue * (alphMax - alphMin)) + alphMin));
+			if (mode == MovingThing.TAIL) {
+				// Stand-in for the saved positions: a streak back along the
+				// current velocity, as long as the drawn trail
+				p.stroke(red, green, blue, alpha);
+				p.strokeWeight(drawSize);
+				p.line(x, y, x - trail * vx, y - trail * vy);
+			} else if (mode == MovingThing.DOT) {
+				p.strokeWeight(drawSize);
+				p.stroke(red, green, blue, alpha);
+				p.point(x, y);
+			} else if (mode == MovingThing.ELLIPSE) {
+				p.noStroke();
+				p.strokeWeight(0);
+				p.fill(red, green, blue, alpha);
+				p.pushMatrix();
+				p.translate(x, y);
+				p.rotate(PApplet.atan2(vy, vx));
+				p.ellipse(0, 0, drawSize * speed, drawSize);
+				p.popMatrix();
+			}
+		}
+	}
+
+	/**
+	 * Apply magnetic repulsion to each MovingThing from the specified location
+	 * vector.
+	 * 
+	 * @param thing
+	 *            PVector representing location of magnetic force
+	 */
+	public void runAwayFrom(PVector thing) {
+		repel(thing.x, thing.y, 1);
+	}
+
+	/**
+	 * Apply magnetic repulsion to each MovingThing in this Flock proportional
+	 * to the magnetic coefficient of the MovingThing thing.
+	 * 
+	 * @param thing
+	 *            The MovingThing to run away from.
+	 */
+	public void runAwayFrom(MovingThing thing) {
+		repel(thing.getPos().x, thing.getPos().y, thing.getMagForce());
+	}
+
+	/**
+	 * Apply magnetic repulsion to each MovingThing from (x,y).
+	 * 
+	 * @param x
+	 *            X-coordinate of the magnetic force
+	 * @param y
+	 *            Y-coordinate of the magnetic force
+	 * @param mForce
+	 *            Magnetic coefficient of the force
+	 */
+	private void repel(float x, float y, float mForce) {
+		if (store != null) {
+			store.repel(x, y, mForce, mass());
+			return;
+		}
+		for (int i = 0; i < numThings; i++) {
+			MovingThing mi = allThings.get(i);
+			PVector dist = mi.getPos().copy();
+			dist.x -= x;
+			dist.y -= y;
+			float dMag = dist.mag() / 10;
+			if (dMag < mForce * 2) {
+				float magnitude = 1 / (dMag * dMag);
+				dist.mult(mForce * magnitude / dMag);
+				mi.applyForce(dist);
+				mi.wake();
+			}
+		}
+	}
+
+	/**
+	 * Set the magnetic coefficient of every MovingThing in this Flock
+	 * 
+	 * @param m
+	 *            Magnetic coefficient
+	 */
+	public void setMagForce(float m) {
+		magForce = m;
+		if (store != null) {
+			return;
+		}
+		for (int i = 0; i < numThings; i++) {
+			allThings.get(i).setMagForce(m);
+		}
+	}
+
+	/**
+	 * Sanitize the coordinates (x,y) so that they are within the window using
+	 * modulo arithmetic and then move the specified MovingThing to those
+	 * coordinates.
+	 * 
+	 * @param f
+	 *            MovingThing to move
+	 * @param x
+	 *            X-coordinate of target location
+	 * @param y
+	 *            Y-coordinate of target location
+	 */
+	public void setWithinWindow(MovingThing f, float x, float y) {
+		if (x < 0) {
+			x = -1 * x;
+		}
+		if (x > width) {
+			x = width - (x % width);
+		}
+		if (y < 0) {
+			y = -1 * y;
+		}
+		if (y > height) {
+			y = height - (y % height);
+		}
+		f.setPos(x, y);
+	}
+
+	/**
+	 * Change the draw mode of this Flock to a different mode.
+	 */
+	public void toggleMode() {
+		if (mode == MovingThing.TAIL) {
+			mode = 0;
+		} else {
+			mode++;
+		}
+	}
+
+	/**
+	 * Get the draw mode of this Flock
+	 * 
+	 * @return Current mode
+	 */
+	public int getMode() {
+		return mode;
+	}
+
+	/**
+	 * Set the draw mode of this Flock to the specified mode
+	 * 
+	 * @param m
+	 *            Mode to change to
+	 */
+	public void setMode(int m) {
+		mode = m;
+	}
+
+	/**
+	 * Get the lower bound of the spring constant range for this Flock
+	 * 
+	 * @return Minimum spring constant
+	 */
+	public float getSpringConstantMin() {
+		return springs.getConstantMin();
+	}
+
+	/**
+	 * Get the upper bound of the spring constant range for this Flock
+	 * 
+	 * @return Maximum spring constant
+	 */
+	public float getSpringConstantMax() {
+		return springs.getConstantMax();
+	}
+
+	/**
+	 * Increase the range of spring constants by decreasing the lower bound and
+	 * maintaining the upper bound.
+	 */
+	public void increaseSpringConstRange() {
+		springs.setConstantMin(springs.getConstantMin() / 1.1f);
+	}
+
+	/**
+	 * Decrease the range of spring constants by increasing the lower bound and
+	 * mainting the upper bound.
+	 */
+	public void decreaseSpringConstRange() {
+		springs.setConstantMin(Math.min(springs.getConstantMin() * 1.1f, springs.getConstantMax()));
+	}
+
+	/**
+	 * Set the lower bound for spring constants in this Flock.
+	 * 
+	 * @param s
+	 *            Minimum spring constant
+	 */
+	public void setSpringConstantMin(float s) {
+		springs.setConstantMin(s);
+	}
+
+	/**
+	 * Set the upper bound for spring constants in this Flock.
+	 * 
+	 * @param s
+	 *            Maximum spring constant
+	 */
+	public void setSpringConstantMax(float s) {
+		springs.setConstantMax(s);
+	}
+
+	/**
+	 * Set the lower bound for spring lengths in this Flock.
+	 * 
+	 * @param d
+	 *            Minimum spring length
+	 */
+	public void setSpringLengthMin(float d) {
+		springs.setLengthMin(d);
+	}
+
+	/**
+	 * Set the upper bound for spring lengths in this Flock.
+	 * 
+	 * @param d
+	 *            Maximum spring length
+	 */
+	public void setSpringLengthMax(float d) {
+		springs.setLengthMax(d);
+	}
+
+	/**
+	 * Return the average position of all living MovingThings in this flock.
+	 * If none are alive, return the position of the focus.
+	 * 
+	 * @return PVector representing average location of the Flock
+	 */
+	public PVector getAveragePos() {
+		PVector avg = new PVector(0, 0);
+		int n = 0;
+		for (int i = 0; i < numThings; i++) {
+			if (store != null) {
+				if (store.isAlive(i)) {
+					avg.add(store.getX(i), store.getY(i));
+					n++;
+				}
+				continue;
+			}
+			MovingThing mi = allThings.get(i);
+			if (mi.isAlive()) {
+				avg.add(mi.getPos());
+				n++;
+			}
+		}
+		if (n >= 1) {
+			avg.div(n);
+		} else {
+			avg.set(focus.getPos());
+		}
+		return avg;
+	}
+
+	/**
+	 * Get the lower bound for all spring lengths in this Flock.
+	 * 
+	 * @return Minimum spring length
+	 */
+	public float getSpringLengthMin() {
+		return springs.getLengthMin();
+	}
+
+	/**
+	 * Get the upper bound for all spring lengths in this Flock.
+	 * 
+	 * @return Maximum spring length
+	 */
+	public float getSpringLengthMax() {
+		return springs.getLengthMax();
+	}
+
+	/**
+	 * Pick a new random spring length for every MovingThing in this Flock.
+	 * Spring lengths are distributed along the interval [springLengthMin,
+	 * springLengthMax]. Changing the range does not require this, since each
+	 * MovingThing keeps its place within the range.
+	 */
+	public void reSpring() {
+		reSprings++;
+		for (int i = 0; i < numThings; i++) {
+			long key = ((long) reSprings << 32) | i;
+			float frac = PApplet.sqrt(rng.random(FlockRandom.SPRING_LENGTH, key, tick));
+			if (store != null) {
+				store.setLengthFrac(i, frac);
+			} else {
+				allThings.get(i).setSpringLengthFrac(frac);
+			}
+		}
+	}
+
+	/**
+	 * Increase the range of spring lengths in this Flock.
+	 */
+	public void increaseSpringLengthRange() {
+		springs.setLengthMin(Math.max(springs.getLengthMin() - 10, 0));
+		springs.setLengthMax(springs.getLengthMax() + 10);
+	}
+
+	/**
+	 * Decrease the range of spring lengths in this Flock.
+	 */
+	public void decreaseSpringLengthRange() {
+		float min = springs.getLengthMin();
+		float max = springs.getLengthMax();
+		if (max - min < 20) {
+			min -= 10;
+			max -= 10;
+			if (min < 0) {
+				min = 0;
+			}
+			if (max < 0) {
+				max = 0;
+			}
+		} else {
+			min += 10;
+			max -= 10;
+		}
+		springs.setLengthMin(min);
+		springs.setLengthMax(max);
+	}
+
+	/**
+	 * Remove the last MovingThing added to this Flock.
+	 */
+	public void removeLastThing() {
+		if (store != null) {
+			store.removeLast();
+			numThings = store.size();
+		} else if (numThings > 0) {
+			allThings.remove(numThings - 1);
+			numThings--;
+		}
+	}
+
+	/**
+	 * Remove the MovingThing at index i by moving the last MovingThing into
+	 * its place. Changes the index of the last MovingThing.
+	 * 
+	 * @param i
+	 *            Index of the MovingThing to remove
+	 */
+	public void removeThing(int i) {
+		if (store != null) {
+			store.remove(i);
+			numThings--;
+			if (i < numThings && !store.isAlive(i)) {
+				freeSlot(i);
+			}
+			return;
+		}
+		MovingThing removed = allThings.get(i);
+		if (trailPool != null && removed.getTrailPool() == trailPool) {
+			// Give its slot back, leaving it a pool of its own in case it is
+			// still used
+			removed.setQuantizedHistory(new TrailPool(trailLength, 1));
+		}
+		MovingThing last = allThings.remove(numThings - 1);
+		numThings--;
+		if (i < numThings) {
+			allThings.set(i, last);
+			if (!last.isAlive()) {
+				freeSlot(i);
+			}
+		}
+	}
+
+	/**
+	 * Attach an Emitter to this Flock. It will release MovingThings every
+	 * update, and their slots will be reused once they die.
+	 * 
+	 * @param e
+	 *            Emitter to attach
+	 */
+	public void addEmitter(Emitter e) {
+		emitters.add(e);
+	}
+
+	/**
+	 * Detach an Emitter from this Flock. MovingThings it has already released
+	 * live out the rest of their lives.
+	 * 
+	 * @param e
+	 *            Emitter to detach
+	 */
+	public void removeEmitter(Emitter e) {
+		emitters.remove(e);
+	}
+
+	/**
+	 * Get an Emitter attached to this Flock.
+	 * 
+	 * @param i
+	 *            Index of the Emitter
+	 * @return The Emitter at the specified index
+	 */
+	public Emitter getEmitter(int i) {
+		return emitters.get(i);
+	}
+
+	/**
+	 * 
+	 * @return The number of Emitters attached to this Flock
+	 */
+	public int getNumEmitters() {
+		return emitters.size();
+	}
+
+	/**
+	 * Get the number of MovingThings in this Flock which are still alive.
+	 * 
+	 * @return Size of the Flock minus the number of dead, reusable slots
+	 */
+	public int getNumAlive() {
+		int n = 0;
+		for (int i = 0; i < numThings; i++) {
+			if (store != null ? store.isAlive(i) : allThings.get(i).isAlive()) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Set the draw size of each MovingThing in this flock
+	 * 
+	 * @param s
+	 *            Desired radius of each MovingThing
+	 */
+	public void setDrawSize(float s) {
+		drawSize = s;
+	}
+
+	/**
+	 * Set how many previous positions each MovingThing in this Flock saves,
+	 * which sets the length of tails in TAIL mode.
+	 * 
+	 * @param n
+	 *            Number of previous positions, at least 2
+	 * @throws IllegalStateException
+	 *             If the Flock is stored off the heap
+	 */
+	public void setTrailLength(int n) {
+		checkNotStored("setTrailLength()");
+		trailLength = n;
+		if (trailPool != null) {
+			trailPool = new TrailPool(n, numThings);
+		}
+		for (int i = 0; i < numThings; i++) {
+			if (trailPool != null) {
+				allThings.get(i).setQuantizedHistory(trailPool);
+			} else {
+				allThings.get(i).setHistoryLength(n);
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * @return Number of previous positions each MovingThing saves
+	 */
+	public int getTrailLength() {
+		return trailLength;
+	}
+
+	/**
+	 * Draw TAILs through no more than n of each MovingThing's most recent
+	 * previous positions, without changing how many are saved. Unlike
+	 * setTrailLength() this allocates nothing, so it is cheap to change
+	 * between frames, and it also works off the heap and for snapshots.
+	 * 
+	 * @param n
+	 *            Most previous positions to draw, 0 to draw them all
+	 */
+	public void setDrawnTrailLength(int n) {
+		drawnTrailLength = Math.max(n, 0);
+	}
+
+	/**
+	 * 
+	 * @return Most previous positions drawn in each TAIL, 0 if all of them are
+	 */
+	public int getDrawnTrailLength() {
+		return drawnTrailLength;
+	}
+
+	/**
+	 * Set whether or not each MovingThing in this Flock stores its previous
+	 * positions quantized, in one TrailPool shared by the whole Flock. The
+	 * default 10 positions then take about 15 times less memory than as
+	 * PVectors. See MovingThing.setQuantizedHistory(TrailPool).
+	 * 
+	 * @param q
+	 *            Whether or not to quantize previous positions
+	 * @throws IllegalStateException
+	 *             If the Flock is stored off the heap
+	 */
+	public void setQuantizedTrails(boolean q) {
+		checkNotStored("setQuantizedTrails()");
+		if (q == (trailPool != null)) {
+			return;
+		}
+		trailPool = q ? new TrailPool(trailLength, numThings) : null;
+		for (int i = 0; i < numThings; i++) {
+			allThings.get(i).setQuantizedHistory(trailPool);
+		}
+	}
+
+	/**
+	 * 
+	 * @return Whether or not previous positions are stored quantized
+	 */
+	public boolean isQuantizedTrails() {
+		return trailPool != null;
+	}
+
+	/**
+	 * Get the draw size of each MovingThing in this flock
+	 * 
+	 * @return Radius in pixels
+	 */
+	public float getDrawSize() {
+		return drawSize;
+	}
+
+	/**
+	 * Toggle whether or not the focus of this Flock follows the mouse. Mouse
+	 * movements reach the focus at the start of each update. Turning it on
+	 * moves the focus to where the mouse is now; the Flock only listens for
+	 * mouse events while it is on. Must be called from the PApplet's thread.
+	 */
+	public void toggleFollowMouse() {
+		followMouse = !followMouse;
+		if (followMouse) {
+			p.registerMethod("mouseEvent", this);
+			moveFocusToMouse(p.mouseX, p.mouseY);
+		} else {
+			p.unregisterMethod("mouseEvent", this);
+			mouseTarget.set(NO_MOUSE);
+		}
+	}
+
+	/**
+	 * Set the speed which the focus moves at.
+	 * 
+	 * @param s
+	 *            The amount by which the seed for the noise function
+	 *            determining the position of the focus changes each update
+	 */
+	public void setFocusSpeed(float s) {
+		speed = s;
+	}
+
+	/**
+	 * Get the speed which the focus moves at.
+	 * 
+	 * @return The amount by which the seed for the noise function determining
+	 *         the position of the focus changes each update
+	 */
+	public float getFocusSpeed() {
+		return speed;
+	}
+
+	/**
+	 * Set the focus to the specified MovingThing.
+	 * 
 	 * @param m
 	 *            MovingThing to become the focus
 	 */
 	public void setFocus(MovingThing m) {
-		// allThings.set(focus, m);
+		MovingThing old = focus;
 		focus = m;
+		if (store != null) {
+			// Particles in off-heap storage connected to the focus are pulled
+			// to attractor 0, which update() reads from whatever the focus is
+			return;
+		}
+		// Move the springs attached to the old focus rather than adding new
+		// ones
+		replaceAttractor(old, m);
+	}
+
+	/**
+	 * Move every spring attached to one attractor onto another.
+	 * 
+	 * @param from
+	 *            Attractor to detach from
+	 * @param to
+	 *            Attractor to attach to
+	 */
+	private void replaceAttractor(MovingThing from, MovingThing to) {
 		for (int i = 0; i < numThings; i++) {
-			allThings.get(i).addConnection(focus);
+			MovingThing mi = allThings.get(i);
+			for (int j = 0; j < mi.getNumConnections(); j++) {
+				if (mi.getConnected(j) == from) {
+					mi.setConnected(j, to);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Add another attractor to this Flock. Alongside the focus, each
+	 * attractor pulls on the MovingThings nearest to it, so the Flock splits
+	 * into groups around them. Which attractor is nearest is checked
+	 * periodically rather than every update, so attractors are best moved
+	 * smoothly. Only MovingThings connected to the focus when they were added
+	 * follow attractors.
+	 * 
+	 * @param a
+	 *            MovingThing to attract MovingThings, moved by the caller
+	 */
+	public void addAttractor(MovingThing a) {
+		attractors.add(a);
+	}
+
+	/**
+	 * Add another attractor to this Flock at (x,y).
+	 * 
+	 * @param x
+	 *            X-coordinate of the attractor
+	 * @param y
+	 *            Y-coordinate of the attractor
+	 * @return The new attractor
+	 */
+	public MovingThing addAttractor(float x, float y) {
+		MovingThing a = new MovingThing(new PVector(x, y), new PVector(0, 0), new PVector(0, 0), size, drawSize,
+				maxSpeed, p);
+		addAttractor(a);
+		return a;
+	}
+
+	/**
+	 * Remove an attractor from this Flock. MovingThings following it follow
+	 * the focus until they are next assigned to their nearest attractor.
+	 * 
+	 * @param a
+	 *            Attractor to remove
+	 */
+	public void removeAttractor(MovingThing a) {
+		int i = attractors.indexOf(a);
+		if (i < 0) {
+			return;
 		}
+		attractors.remove(i);
+		if (store != null) {
+			store.removeAttractor(i + 1);
+		} else {
+			replaceAttractor(a, focus);
+		}
+	}
+
+	/**
+	 * 
+	 * @param i
+	 *            Index of the attractor
+	 * @return The attractor at index i, not counting the focus
+	 */
+	public MovingThing getAttractor(int i) {
+		return attractors.get(i);
+	}
+
+	/**
+	 * 
+	 * @return The number of attractors, not counting the focus
+	 */
+	public int getNumAttractors() {
+		return attractors.size();
+	}
+
+	/**
+	 * Set how often each MovingThing is moved to its nearest attractor.
+	 * 
+	 * @param n
+	 *            Number of updates between checks of each MovingThing
+	 */
+	public void setReassignInterval(int n) {
+		reassignInterval = Math.max(n, 1);
+	}
+
+	/**
+	 * 
+	 * @return Number of updates between checks of each MovingThing
+	 */
+	public int getReassignInterval() {
+		return reassignInterval;
+	}
+
+	/**
+	 * 
+	 * @return The MovingThing that all MovingThings in this Flock follow
+	 */
+	public MovingThing getFocus() {
+		return focus;
 	}
 
 	/**
-	 * Get a MovingThing from the Flock.
+	 * Get a MovingThing from the Flock. If the Flock is stored off the heap,
+	 * this is a new copy of the MovingThing's current state, and changing it
+	 * has no effect on the Flock.
 	 * 
 	 * @param i
 	 *            Index of the MovingThing
 	 * @return The MovingThing at the specified index
 	 */
 	public MovingThing getMovingThing(int i) {
+		if (store != null) {
+			if (i < 0 || i >= numThings) {
+				throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + numThings);
+			}
+			MovingThing m = new MovingThing(new PVector(0, 0), new PVector(0, 0), new PVector(0, 0), size,
+					drawSize, maxSpeed, p);
+			m.setSpringRange(springs, 0, 0);
+			store.copyTo(i, m);
+			if (store.isConnected(i)) {
+				int a = store.getAttractor(i);
+				m.addConnection(a <= attractors.size() ? attractor(a) : focus);
+			}
+			return m;
+		}
 		return allThings.get(i);
 	}
 
@@ -625,6 +1983,24 @@ public class Flock {
 		alphMax = max;
 	}
 
+	/**
+	 * Get the color ranges of this Flock.
+	 * 
+	 * @return Minimum and maximum of red, green, blue and alpha, in the order
+	 *         taken by setColorRangeRGBA()
+	 */
+	public int[] getColorRangeRGBA() {
+		return new int[] { redMin, redMax, greenMin, greenMax, blueMin, blueMax, alphMin, alphMax };
+	}
+
+	/**
+	 * 
+	 * @return Magnetic coefficient last set with setMagForce()
+	 */
+	public float getMagForce() {
+		return magForce;
+	}
+
 	/**
 	 * Return the minimum speed a MovingThing must be moving at to be drawn on
 	 * the screen.
@@ -646,6 +2022,330 @@ public class Flock {
 		speedThreshold = s;
 	}
 
+	/**
+	 * 
+	 * @return The random number generator this Flock draws from
+	 */
+	public FlockRandom getRandom() {
+		return rng;
+	}
+
+	/**
+	 * 
+	 * @return The number of updates this Flock has been through
+	 */
+	public long getTick() {
+		return tick;
+	}
+
+	/**
+	 * Only draw every n-th MovingThing in this Flock, as a cheaper level of
+	 * detail for very large Flocks.
+	 * 
+	 * @param n
+	 *            Draw stride, 1 to draw everything
+	 */
+	public void setDrawStride(int n) {
+		drawStride = Math.max(n, 1);
+	}
+
+	/**
+	 * 
+	 * @return Draw stride, 1 if everything is drawn
+	 */
+	public int getDrawStride() {
+		return drawStride;
+	}
+
+	/**
+	 * Let every n MovingThings in a row share one oscillation noise value,
+	 * cutting the number of noise calls per update by a factor of n.
+	 * 
+	 * @param n
+	 *            Number of MovingThings per noise value, 1 for one each
+	 */
+	public void setOscillationStride(int n) {
+		oscillationStride = Math.max(n, 1);
+	}
+
+	/**
+	 * 
+	 * @return Number of MovingThings sharing each oscillation noise value
+	 */
+	public int getOscillationStride() {
+		return oscillationStride;
+	}
+
+	/**
+	 * Hand control of this Flock's quality settings to a QualityController,
+	 * which will change them at the end of each frame to hold its target frame
+	 * time.
+	 * 
+	 * @param q
+	 *            Controller, or null to stop adapting quality
+	 */
+	public void setQualityController(QualityController q) {
+		quality = q;
+	}
+
+	/**
+	 * 
+	 * @return The QualityController adapting this Flock, or null
+	 */
+	public QualityController getQualityController() {
+		return quality;
+	}
+
+	/**
+	 * 
+	 * @return Time taken by the last update in milliseconds
+	 */
+	public float getUpdateMillis() {
+		return updateNanos / 1e6f;
+	}
+
+	/**
+	 * 
+	 * @return Time taken by the last draw in milliseconds
+	 */
+	public float getDrawMillis() {
+		return drawNanos / 1e6f;
+	}
+
+	/**
+	 * Add a stage to the end of this Flock's force pipeline. The pipeline can
+	 * only be changed while MovingThings are stored as objects; off-heap
+	 * storage always applies noise, drag and springs.
+	 * 
+	 * @param stage
+	 *            Stage to add
+	 * @throws IllegalStateException
+	 *             If the Flock is stored off the heap
+	 */
+	public void addForceStage(ForceStage stage) {
+		checkNotStored("addForceStage()");
+		stages.add(stage);
+	}
+
+	/**
+	 * Add a stage to this Flock's force pipeline at a given position.
+	 * 
+	 * @param index
+	 *            Position in the pipeline, 0 to run first
+	 * @param stage
+	 *            Stage to add
+	 * @throws IllegalStateException
+	 *             If the Flock is stored off the heap
+	 */
+	public void addForceStage(int index, ForceStage stage) {
+		checkNotStored("addForceStage()");
+		stages.add(index, stage);
+	}
+
+	/**
+	 * Remove a stage from this Flock's force pipeline.
+	 * 
+	 * @param stage
+	 *            Stage to remove
+	 * @throws IllegalStateException
+	 *             If the Flock is stored off the heap
+	 */
+	public void removeForceStage(ForceStage stage) {
+		checkNotStored("removeForceStage()");
+		stages.remove(stage);
+	}
+
+	/**
+	 * Move a stage to a new position in this Flock's force pipeline.
+	 * 
+	 * @param from
+	 *            Current position of the stage
+	 * @param to
+	 *            New position of the stage
+	 * @throws IllegalStateException
+	 *             If the Flock is stored off the heap
+	 */
+	public void moveForceStage(int from, int to) {
+		checkNotStored("moveForceStage()");
+		stages.add(to, stages.remove(from));
+	}
+
+	/**
+	 * 
+	 * @param i
+	 *            Position in the pipeline
+	 * @return The stage at position i of this Flock's force pipeline
+	 */
+	public ForceStage getForceStage(int i) {
+		return stages.get(i);
+	}
+
+	/**
+	 * 
+	 * @return The number of stages in this Flock's force pipeline
+	 */
+	public int getNumForceStages() {
+		return stages.size();
+	}
+
+	/**
+	 * 
+	 * @return Whether or not the force pipeline is still the default one of
+	 *         noise, drag and springs, in that order
+	 */
+	boolean hasDefaultPipeline() {
+		return stages.size() == 3 && stages.get(0) instanceof NoiseStage && stages.get(1) instanceof DragStage
+				&& stages.get(2) instanceof SpringStage;
+	}
+
+	/**
+	 * Push MovingThings along a flow field instead of oscillating them with
+	 * noise, by putting a FlowFieldStage where the NoiseStage was in the force
+	 * pipeline, or at the start if there is none.
+	 * 
+	 * @param field
+	 *            Field to push MovingThings along, or null to go back to
+	 *            noise
+	 * @param strength
+	 *            Size of the force
+	 * @param rowsPerUpdate
+	 *            Number of rows of the field to regenerate each update
+	 * @throws IllegalStateException
+	 *             If the Flock is stored off the heap
+	 */
+	public void setFlowField(FlowField field, float strength, int rowsPerUpdate) {
+		checkNotStored("setFlowField()");
+		int index = 0;
+		for (int i = stages.size() - 1; i >= 0; i--) {
+			if (stages.get(i) instanceof NoiseStage || stages.get(i) instanceof FlowFieldStage) {
+				stages.remove(i);
+				index = i;
+			}
+		}
+		stages.add(index, field == null ? new NoiseStage() : new FlowFieldStage(field, strength, rowsPerUpdate));
+	}
+
+	/**
+	 * Put MovingThings which have settled near the rest length of their
+	 * springs to sleep. A sleeping MovingThing stays where it is and is only
+	 * updated every few updates, waking if it starts to move or its springs
+	 * are stretched. Repulsion wakes the MovingThings it reaches, as do stages
+	 * such as RepulsionStage whose force reaches a sleeper. Moving the focus
+	 * more than the wake distance in an update only wakes the MovingThings
+	 * pulled towards it, and moving a MovingThing's spring to another
+	 * attractor wakes it. Only MovingThings stored as objects can sleep.
+	 * 
+	 * @param s
+	 *            Whether or not settled MovingThings sleep
+	 * @throws IllegalStateException
+	 *             If turned on while the Flock is stored off the heap
+	 */
+	public void setSleeping(boolean s) {
+		if (s) {
+			checkNotStored("setSleeping(true)");
+		}
+		sleeping = s;
+		lastFocusX = focus.getPos().x;
+		lastFocusY = focus.getPos().y;
+		if (!s) {
+			wakeAll();
+		}
+	}
+
+	/**
+	 * 
+	 * @return Whether or not settled MovingThings sleep
+	 */
+	public boolean isSleeping() {
+		return sleeping;
+	}
+
+	/**
+	 * Set when a MovingThing counts as settled.
+	 * 
+	 * @param speed
+	 *            Speed below which a MovingThing counts as still
+	 * @param stretch
+	 *            Distance from the rest length of its springs below which a
+	 *            MovingThing counts as still
+	 * @param delay
+	 *            Number of updates a MovingThing must be still for before it
+	 *            falls asleep
+	 */
+	public void setSleepThresholds(float speed, float stretch, int delay) {
+		sleepSpeed = speed;
+		sleepStretch = stretch;
+		sleepDelay = delay;
+	}
+
+	/**
+	 * Set how often sleeping MovingThings are updated.
+	 * 
+	 * @param n
+	 *            Number of updates between updates of each sleeping
+	 *            MovingThing
+	 */
+	public void setSleepInterval(int n) {
+		sleepInterval = Math.max(n, 1);
+	}
+
+	/**
+	 * Set how far the focus must move in a single update to wake the
+	 * MovingThings pulled towards it.
+	 * 
+	 * @param d
+	 *            Distance in pixels
+	 */
+	public void setWakeDistance(float d) {
+		wakeDistance = d;
+	}
+
+	/**
+	 * 
+	 * @return The number of sleeping MovingThings in this Flock, always 0 if
+	 *         it is stored off the heap
+	 */
+	public int getNumAsleep() {
+		if (store != null) {
+			return 0;
+		}
+		int n = 0;
+		for (int i = 0; i < numThings; i++) {
+			if (allThings.get(i).isAsleep()) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Time each stage of the force pipeline separately, readable afterwards
+	 * with ForceStage.getMillis(). Timing gives each stage its own pass over
+	 * the MovingThings, so it makes updates slower.
+	 * 
+	 * @param t
+	 *            Whether or not to time each stage
+	 */
+	public void setStageTiming(boolean t) {
+		stageTiming = t;
+	}
+
+	/**
+	 * 
+	 * @return Width of the drawing window
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * 
+	 * @return Height of the drawing window
+	 */
+	public int getHeight() {
+		return height;
+	}
+
 	/**
 	 * Get the size of this Flock.
 	 * 
@@ -0,0 +1,418 @@
+package art2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import processing.core.PApplet;
+
+/**
+ * A Flock too big for one process, split across several FlockWorker
+ * processes on the same machine. The window is cut into vertical strips of
+ * equal width and each worker owns the MovingThings inside one strip.
+ * Workers update in parallel and talk to the cluster over loopback sockets;
+ * every tick the cluster sends each worker the focus position and any other
+ * commands, collects the state of every MovingThing into one FlockSnapshot
+ * for drawing, and passes MovingThings which crossed a strip boundary on to
+ * their new owner.
+ * 
+ * Workers only ever run the default force pipeline of noise, drag and
+ * springs, under which MovingThings feel the focus and repulsors but never
+ * each other. No worker needs to see MovingThings owned by its neighbours, so
+ * no ghost copies are exchanged across strip boundaries. Stages which would
+ * need them, such as CollisionStage and RepulsionStage, are not supported:
+ * update() throws if any other stage is added to the cluster's Flock.
+ * 
+ * Every worker shares the cluster's seed, and each MovingThing keeps the
+ * index it was created with as its noise index wherever it goes. The cluster
+ * hands out the oscillation seed every tick, advancing it by the total
+ * number of MovingThings across workers, so MovingThings oscillate as they
+ * would in a single Flock. MovingThings which die on their way out of a strip
+ * are dropped rather than handed on.
+ */
+public class FlockCluster {
+	// How long stop() waits for each worker to exit before killing it
+	private static final long STOP_MILLIS = 2000;
+
+	// Flock holding no MovingThings of its own, used for the focus path, the
+	// random numbers for new MovingThings and the drawing settings
+	private final Flock flock;
+	private final PApplet p;
+
+	private final int numWorkers;
+	private final long seed;
+	private Process[] processes;
+	private Socket[] sockets;
+	private DataInputStream[] ins;
+	private DataOutputStream[] outs;
+
+	// Commands to send to every worker next tick
+	private int[] types;
+	private float[] argA;
+	private float[] argB;
+	private float[] argC;
+	private int numCommands;
+
+	// MovingThings waiting to be sent to each worker next tick
+	private ByteArrayOutputStream[] pending;
+	private DataOutputStream[] pendingOut;
+	private int[] pendingCount;
+	private final byte[] record;
+	private long numSpawned;
+
+	// Block of states read from one worker, grown as needed
+	private ByteBuffer states;
+
+	// Seed of the oscillation noise for the next tick, and the number of
+	// ticks so far
+	private float oscSeed;
+	private long tick;
+
+	// Every MovingThing from the last tick, in worker order
+	private final FlockSnapshot frame;
+
+	/**
+	 * Create a new FlockCluster. No processes are started until start().
+	 * 
+	 * @param p
+	 *            PApplet which the cluster will draw to
+	 * @param numWorkers
+	 *            Number of worker processes
+	 * @param seed
+	 *            Seed for the cluster and its workers
+	 */
+	public FlockCluster(PApplet p, int numWorkers, long seed) {
+		this.p = p;
+		this.numWorkers = numWorkers;
+		this.seed = seed;
+		flock = new Flock(p, seed);
+		types = new int[16];
+		argA = new float[16];
+		argB = new float[16];
+		argC = new float[16];
+		numCommands = 0;
+		pending = new ByteArrayOutputStream[numWorkers];
+		pendingOut = new DataOutputStream[numWorkers];
+		pendingCount = new int[numWorkers];
+		for (int i = 0; i < numWorkers; i++) {
+			pending[i] = new ByteArrayOutputStream();
+			pendingOut[i] = new DataOutputStream(pending[i]);
+		}
+		record = new byte[FlockWorker.RECORD_SIZE];
+		states = ByteBuffer.allocate(1024 * FlockWorker.STATE_SIZE);
+		numSpawned = 0;
+		oscSeed = flock.getOscillationSeed();
+		tick = 0;
+		frame = new FlockSnapshot(1024);
+	}
+
+	/**
+	 * Start the worker processes, running the same classpath as this one, and
+	 * wait for each of them to connect.
+	 * 
+	 * @throws IOException
+	 *             If a worker cannot be started or fails to connect
+	 */
+	public void start() throws IOException {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		String classpath = System.getProperty("java.class.path");
+		processes = new Process[numWorkers];
+		sockets = new Socket[numWorkers];
+		ins = new DataInputStream[numWorkers];
+		outs = new DataOutputStream[numWorkers];
+
+		ServerSocket server = new ServerSocket(0, numWorkers, InetAddress.getLoopbackAddress());
+		try {
+			for (int i = 0; i < numWorkers; i++) {
+				ProcessBuilder pb = new ProcessBuilder(java, "-cp", classpath, FlockWorker.class.getName(),
+						Integer.toString(server.getLocalPort()), Integer.toString(i), Integer.toString(numWorkers),
+						Integer.toString(p.width), Integer.toString(p.height),
+						Long.toString(flock.getRandom().getSeed()));
+				pb.inheritIO();
+				processes[i] = pb.start();
+			}
+			for (int i = 0; i < numWorkers; i++) {
+				Socket s = server.accept();
+				s.setTcpNoDelay(true);
+				DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 1 << 16));
+				int index = in.readInt();
+				sockets[index] = s;
+				ins[index] = in;
+				outs[index] = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 1 << 16));
+			}
+		} finally {
+			server.close();
+		}
+	}
+
+	/**
+	 * Tell every worker to quit and wait for their processes to exit, killing
+	 * any which have not exited after a couple of seconds. Does nothing if the
+	 * workers were never started.
+	 */
+	public void stop() {
+		if (processes == null) {
+			return;
+		}
+		for (int i = 0; i < numWorkers; i++) {
+			if (processes[i] == null) {
+				continue;
+			}
+			if (outs[i] == null) {
+				// Started but never connected
+				processes[i].destroyForcibly();
+				continue;
+			}
+			try {
+				outs[i].writeInt(FlockWorker.QUIT);
+				outs[i].flush();
+				sockets[i].close();
+				if (!processes[i].waitFor(STOP_MILLIS, TimeUnit.MILLISECONDS)) {
+					processes[i].destroyForcibly();
+				}
+			} catch (IOException e) {
+				processes[i].destroyForcibly();
+			} catch (InterruptedException e) {
+				processes[i].destroyForcibly();
+				Thread.currentThread().interrupt();
+			}
+		}
+		processes = null;
+	}
+
+	/**
+	 * Update every worker by one tick and gather the results. Blocks until
+	 * the slowest worker has finished.
+	 * 
+	 * @throws IOException
+	 *             If a worker's connection fails
+	 * @throws IllegalStateException
+	 *             If the cluster's Flock has force stages other than the
+	 *             default ones, which the workers would not run
+	 */
+	public void update() throws IOException {
+		if (!flock.hasDefaultPipeline()) {
+			throw new IllegalStateException("FlockCluster workers only apply noise, drag and springs");
+		}
+		float fx = flock.getFocus().getPos().x;
+		float fy = flock.getFocus().getPos().y;
+		// Send everything first so the workers run in parallel
+		for (int w = 0; w < numWorkers; w++) {
+			DataOutputStream out = outs[w];
+			out.writeInt(FlockWorker.TICK);
+			out.writeInt(numCommands + 2);
+			out.writeInt(FlockCommandQueue.MOVE_FOCUS);
+			out.writeFloat(fx);
+			out.writeFloat(fy);
+			out.writeFloat(0);
+			out.writeInt(FlockCommandQueue.SET_OSCILLATION_SEED);
+			out.writeFloat(oscSeed);
+			out.writeFloat(0);
+			out.writeFloat(0);
+			for (int i = 0; i < numCommands; i++) {
+				out.writeInt(types[i]);
+				out.writeFloat(argA[i]);
+				out.writeFloat(argB[i]);
+				out.writeFloat(argC[i]);
+			}
+			out.writeInt(pendingCount[w]);
+			pending[w].writeTo(out);
+			pending[w].reset();
+			pendingCount[w] = 0;
+			out.flush();
+		}
+		numCommands = 0;
+
+		int n = 0;
+		int total = 0;
+		for (int w = 0; w < numWorkers; w++) {
+			DataInputStream in = ins[w];
+			tick = in.readLong();
+			total += in.readInt();
+			int count = in.readInt();
+			frame.ensureCapacity(n + count);
+			if (states.capacity() < count * FlockWorker.STATE_SIZE) {
+				states = ByteBuffer.allocate(count * 2 * FlockWorker.STATE_SIZE);
+			}
+			// One read for the whole block rather than one per float
+			in.readFully(states.array(), 0, count * FlockWorker.STATE_SIZE);
+			states.clear();
+			for (int i = n; i < n + count; i++) {
+				frame.set(i, states.getFloat(), states.getFloat(), states.getFloat(), states.getFloat(),
+						states.getFloat());
+			}
+			n += count;
+			int nOut = in.readInt();
+			for (int i = 0; i < nOut; i++) {
+				in.readFully(record);
+				int owner = FlockWorker.ownerOf(ByteBuffer.wrap(record).getFloat(0), numWorkers, p.width);
+				pendingOut[owner].write(record);
+				pendingCount[owner]++;
+			}
+		}
+		// Same float arithmetic as Flock.endTick(), over every worker's
+		// MovingThings at once
+		oscSeed += .01f * total;
+		frame.setCount(n);
+		frame.setFrame(fx, fy, tick, System.nanoTime());
+		flock.captureStyle(frame);
+	}
+
+	/**
+	 * Draw every MovingThing from the last tick.
+	 */
+	public void draw() {
+		flock.drawSnapshot(frame, frame, 1);
+	}
+
+	/**
+	 * Create a new MovingThing connected to the focus at (x,y). It joins the
+	 * worker which owns x on the next tick.
+	 * 
+	 * @param x
+	 *            X-coordinate of the new MovingThing
+	 * @param y
+	 *            Y-coordinate of the new MovingThing
+	 */
+	public void addConnection(float x, float y) {
+		int owner = FlockWorker.ownerOf(x, numWorkers, p.width);
+		DataOutputStream out = pendingOut[owner];
+		FlockRandom rng = flock.getRandom();
+		try {
+			out.writeFloat(x);
+			out.writeFloat(y);
+			out.writeFloat(0);
+			out.writeFloat(0);
+			out.writeFloat(PApplet.sqrt(rng.random(FlockRandom.SPRING_LENGTH, numSpawned, tick)));
+			out.writeFloat(rng.random(FlockRandom.SPRING_CONSTANT, numSpawned, tick));
+			out.writeInt(0);
+			out.writeInt(0);
+			out.writeInt(0);
+			out.writeInt((int) numSpawned);
+			out.writeBoolean(true);
+		} catch (IOException e) {
+			// Writing to memory cannot fail
+			throw new IllegalStateException(e);
+		}
+		pendingCount[owner]++;
+		numSpawned++;
+	}
+
+	/**
+	 * Queue a command for every worker to carry out at the start of the next
+	 * tick.
+	 * 
+	 * @param type
+	 *            Type of command, one of the FlockCommandQueue constants
+	 * @param a
+	 *            First argument
+	 * @param b
+	 *            Second argument
+	 * @param c
+	 *            Third argument
+	 */
+	public void post(int type, float a, float b, float c) {
+		if (numCommands == types.length) {
+			types = Arrays.copyOf(types, numCommands * 2);
+			argA = Arrays.copyOf(argA, numCommands * 2);
+			argB = Arrays.copyOf(argB, numCommands * 2);
+			argC = Arrays.copyOf(argC, numCommands * 2);
+		}
+		types[numCommands] = type;
+		argA[numCommands] = a;
+		argB[numCommands] = b;
+		argC[numCommands] = c;
+		numCommands++;
+		// Keep the local copy of the settings in step for drawing
+		if (type != FlockCommandQueue.REPULSE) {
+			flock.apply(type, a, b, c);
+		}
+	}
+
+	/**
+	 * Apply magnetic repulsion from (x,y) to every MovingThing next tick.
+	 * 
+	 * @param x
+	 *            X-coordinate of the magnetic force
+	 * @param y
+	 *            Y-coordinate of the magnetic force
+	 * @param magForce
+	 *            Magnetic coefficient of the force
+	 */
+	public void runAwayFrom(float x, float y, float magForce) {
+		post(FlockCommandQueue.REPULSE, x, y, magForce);
+	}
+
+	/**
+	 * Move the focus one step along its noise path.
+	 */
+	public void moveFocus() {
+		flock.moveFocus();
+	}
+
+	/**
+	 * Set the location of the focus.
+	 * 
+	 * @param x
+	 *            X-coordinate of destination
+	 * @param y
+	 *            Y-coordinate of destination
+	 */
+	public void moveFocus(int x, int y) {
+		flock.moveFocus(x, y);
+	}
+
+	/**
+	 * Get the Flock which holds this cluster's focus and drawing settings.
+	 * Changes to its settings are not seen by the workers; use post() for
+	 * those. Its force pipeline must be left as it is.
+	 * 
+	 * @return The local Flock
+	 */
+	public Flock getFlock() {
+		return flock;
+	}
+
+	/**
+	 * 
+	 * @return Every MovingThing from the last tick
+	 */
+	public FlockSnapshot getFrame() {
+		return frame;
+	}
+
+	/**
+	 * 
+	 * @return The number of MovingThings across all workers as of the last
+	 *         tick
+	 */
+	public int size() {
+		return frame.getCount();
+	}
+
+	/**
+	 * 
+	 * @return The number of worker processes
+	 */
+	public int getNumWorkers() {
+		return numWorkers;
+	}
+
+	/**
+	 * 
+	 * @return The seed this cluster was created with
+	 */
+	public long getSeed() {
+		return seed;
+	}
+}
@@ -0,0 +1,253 @@
+package art2;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed-size queue of commands for a Flock, posted by one thread and
+ * carried out by the Flock at the start of its next update. Exactly one
+ * thread may post to a queue and only the Flock takes from it, so no locks
+ * are needed; every thread which wants to control a Flock should ask it for
+ * its own queue with Flock.createInputQueue().
+ * 
+ * Commands are stored in preallocated arrays, so posting and draining never
+ * allocate. If the queue is full, post() fails rather than waiting.
+ */
+public class FlockCommandQueue {
+	/*
+	 * Move the focus to (a, b).
+	 */
+	public static final int MOVE_FOCUS = 0;
+
+	/*
+	 * Repel every MovingThing from (a, b) with magnetic coefficient c.
+	 */
+	public static final int REPULSE = 1;
+
+	/*
+	 * Set the focus speed to a.
+	 */
+	public static final int SET_FOCUS_SPEED = 2;
+
+	/*
+	 * Set the draw size to a.
+	 */
+	public static final int SET_DRAW_SIZE = 3;
+
+	/*
+	 * Set the speed threshold to a.
+	 */
+	public static final int SET_SPEED_THRESHOLD = 4;
+
+	/*
+	 * Set the magnetic coefficient of every MovingThing to a.
+	 */
+	public static final int SET_MAG_FORCE = 5;
+
+	/*
+	 * Set the spring length range to [a, b].
+	 */
+	public static final int SET_SPRING_LENGTH_RANGE = 6;
+
+	/*
+	 * Set the spring constant range to [a, b].
+	 */
+	public static final int SET_SPRING_CONSTANT_RANGE = 7;
+
+	/*
+	 * Set the draw mode to a.
+	 */
+	public static final int SET_MODE = 8;
+
+	/*
+	 * Set the range of the red component of colors to a to b.
+	 */
+	public static final int SET_RED_RANGE = 9;
+
+	/*
+	 * Set the range of the green component of colors to a to b.
+	 */
+	public static final int SET_GREEN_RANGE = 10;
+
+	/*
+	 * Set the range of the blue component of colors to a to b.
+	 */
+	public static final int SET_BLUE_RANGE = 11;
+
+	/*
+	 * Set the range of the alpha component of colors to a to b.
+	 */
+	public static final int SET_ALPHA_RANGE = 12;
+
+	/*
+	 * Set the seed of the oscillation noise to a.
+	 */
+	public static final int SET_OSCILLATION_SEED = 13;
+
+	// Command types and arguments, indexed by sequence number modulo capacity
+	private final int[] types;
+	private final float[] argA;
+	private final float[] argB;
+	private final float[] argC;
+	private final int mask;
+
+	// Sequence number of the next command to take, written only by the Flock
+	private final AtomicLong head = new AtomicLong();
+	// Sequence number of the next command to post, written only by the poster
+	private final AtomicLong tail = new AtomicLong();
+	// The poster's last look at head, so it rarely has to read the Flock's
+	// counter
+	private long cachedHead;
+	// Sequence number after the last command of an open batch, or -1 if no
+	// batch is open. Only used by the poster.
+	private long batchTail = -1;
+
+	/**
+	 * Create a new FlockCommandQueue.
+	 * 
+	 * @param capacity
+	 *            Maximum number of commands waiting at once, rounded up to a
+	 *            power of two
+	 */
+	public FlockCommandQueue(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		types = new int[size];
+		argA = new float[size];
+		argB = new float[size];
+		argC = new float[size];
+		mask = size - 1;
+		cachedHead = 0;
+	}
+
+	/**
+	 * Start a batch of commands. Commands posted until commitBatch() are held
+	 * back and then published together, so the Flock carries out either all
+	 * of them in the same update or none of them. Must only be called from
+	 * this queue's one posting thread.
+	 */
+	public void beginBatch() {
+		batchTail = tail.get();
+	}
+
+	/**
+	 * Publish every command posted since beginBatch() to the Flock at once.
+	 */
+	public void commitBatch() {
+		if (batchTail >= 0) {
+			tail.lazySet(batchTail);
+			batchTail = -1;
+		}
+	}
+
+	/**
+	 * Throw away every command posted since beginBatch(), for example if one
+	 * of them didn't fit.
+	 */
+	public void abortBatch() {
+		batchTail = -1;
+	}
+
+	/**
+	 * Post a command. Must only be called from this queue's one posting
+	 * thread.
+	 * 
+	 * @param type
+	 *            Type of command
+	 * @param a
+	 *            First argument
+	 * @param b
+	 *            Second argument
+	 * @param c
+	 *            Third argument
+	 * @return Whether or not there was room for the command
+	 */
+	public boolean post(int type, float a, float b, float c) {
+		long t = batchTail >= 0 ? batchTail : tail.get();
+		if (t - cachedHead > mask) {
+			cachedHead = head.get();
+			if (t - cachedHead > mask) {
+				return false;
+			}
+		}
+		int i = (int) t & mask;
+		types[i] = type;
+		argA[i] = a;
+		argB[i] = b;
+		argC[i] = c;
+		if (batchTail >= 0) {
+			batchTail = t + 1;
+		} else {
+			// Publishes the command above to the Flock
+			tail.lazySet(t + 1);
+		}
+		return true;
+	}
+
+	/**
+	 * Post a request to move the focus.
+	 * 
+	 * @param x
+	 *            X-coordinate of destination
+	 * @param y
+	 *            Y-coordinate of destination
+	 * @return Whether or not there was room for the command
+	 */
+	public boolean moveFocus(float x, float y) {
+		return post(MOVE_FOCUS, x, y, 0);
+	}
+
+	/**
+	 * Post a magnetic repulsor which acts on the Flock for one update.
+	 * 
+	 * @param x
+	 *            X-coordinate of the repulsor
+	 * @param y
+	 *            Y-coordinate of the repulsor
+	 * @param magForce
+	 *            Magnetic coefficient of the repulsor
+	 * @return Whether or not there was room for the command
+	 */
+	public boolean repulse(float x, float y, float magForce) {
+		return post(REPULSE, x, y, magForce);
+	}
+
+	/**
+	 * Post a change to a single-valued parameter.
+	 * 
+	 * @param type
+	 *            Type of command, for example SET_DRAW_SIZE
+	 * @param value
+	 *            New value of the parameter
+	 * @return Whether or not there was room for the command
+	 */
+	public boolean set(int type, float value) {
+		return post(type, value, 0, 0);
+	}
+
+	/**
+	 * Carry out every command posted so far on a Flock. Must only be called by
+	 * the Flock which owns this queue.
+	 * 
+	 * @param f
+	 *            Flock to apply the commands to
+	 * @return Number of commands carried out
+	 */
+	int drain(Flock f) {
+		long h = head.get();
+		long t = tail.get();
+		for (long s = h; s < t; s++) {
+			int i = (int) s & mask;
+			f.apply(types[i], argA[i], argB[i], argC[i]);
+		}
+		// Hands the slots back to the poster
+		head.lazySet(t);
+		return (int) (t - h);
+	}
+
+	/**
+	 * 
+	 * @return Number of commands waiting to be carried out
+	 */
+	public int size() {
+		return (int) (tail.get() - head.get());
+	}
+}
@@ -0,0 +1,540 @@
+package art2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A small HTTP server on the local machine for tuning a running Flock
+ * without recompiling. It serves:
+ * 
+ * <ul>
+ * <li><code>GET /params</code>: every tunable parameter as a JSON object</li>
+ * <li><code>POST /params</code>: a JSON object of parameters to change, for
+ * example <code>{"drawSize": 6, "springLength": [20, 80]}</code>, taking
+ * effect at the start of the next update</li>
+ * <li><code>GET /metrics</code>: update and draw times, size and tick</li>
+ * </ul>
+ * 
+ * Changes are posted to the Flock through its own FlockCommandQueue as a
+ * single batch, so every change in one request takes effect at the start of
+ * the same update. Requests are handled one at a time on the server's own
+ * thread, which is the queue's only poster; the Flock never waits for the
+ * server. Parameters and metrics are read without synchronization, so a
+ * response may mix values from neighbouring updates.
+ */
+public class FlockControlServer {
+	private final Flock flock;
+	private final FlockCommandQueue queue;
+	private HttpServer server;
+	private ExecutorService executor;
+
+	/**
+	 * Create a new FlockControlServer. Nothing is served until start().
+	 * 
+	 * @param f
+	 *            Flock to control
+	 */
+	public FlockControlServer(Flock f) {
+		flock = f;
+		queue = f.createInputQueue(64);
+	}
+
+	/**
+	 * Start serving on the loopback interface.
+	 * 
+	 * @param port
+	 *            Port to listen on, or 0 for any free port
+	 * @throws IOException
+	 *             If the port cannot be opened
+	 */
+	public void start(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/params", new HttpHandler() {
+			public void handle(HttpExchange e) throws IOException {
+				if ("POST".equals(e.getRequestMethod())) {
+					String error = change(readBody(e.getRequestBody()));
+					if (error != null) {
+						respond(e, 400, "{\"error\": \"" + escape(error) + "\"}");
+					} else {
+						// Changes are only seen once the Flock next updates
+						respond(e, 202, "{\"accepted\": true}");
+					}
+					return;
+				}
+				respond(e, 200, params());
+			}
+		});
+		server.createContext("/metrics", new HttpHandler() {
+			public void handle(HttpExchange e) throws IOException {
+				respond(e, 200, metrics());
+			}
+		});
+		// One thread, since only one thread may post to the queue
+		executor = Executors.newSingleThreadExecutor();
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	/**
+	 * Stop serving and give the Flock's queue back.
+	 */
+	public void stop() {
+		if (server != null) {
+			server.stop(0);
+			executor.shutdown();
+			try {
+				executor.awaitTermination(1, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			server = null;
+		}
+		flock.removeInputQueue(queue);
+	}
+
+	/**
+	 * 
+	 * @return Port being listened on, or -1 if not started
+	 */
+	public int getPort() {
+		return server == null ? -1 : server.getAddress().getPort();
+	}
+
+	/**
+	 * 
+	 * @return Every tunable parameter of the Flock as a JSON object
+	 */
+	String params() {
+		int[] c = flock.getColorRangeRGBA();
+		return String.format(Locale.ROOT,
+				"{\"focusSpeed\": %s, \"drawSize\": %s, \"speedThreshold\": %s, \"magForce\": %s, "
+						+ "\"springLength\": [%s, %s], \"springConstant\": [%s, %s], \"mode\": %d, "
+						+ "\"red\": [%d, %d], \"green\": [%d, %d], \"blue\": [%d, %d], \"alpha\": [%d, %d]}",
+				flock.getFocusSpeed(), flock.getDrawSize(), flock.getSpeedThreshold(), flock.getMagForce(),
+				flock.getSpringLengthMin(), flock.getSpringLengthMax(), flock.getSpringConstantMin(),
+				flock.getSpringConstantMax(), flock.getMode(), c[0], c[1], c[2], c[3], c[4], c[5], c[6], c[7]);
+	}
+
+	/**
+	 * 
+	 * @return Live measurements of the Flock as a JSON object
+	 */
+	String metrics() {
+		QualityController q = flock.getQualityController();
+		return String.format(Locale.ROOT,
+				"{\"updateMillis\": %s, \"drawMillis\": %s, \"size\": %d, \"tick\": %d, \"qualityLevel\": %d}",
+				flock.getUpdateMillis(), flock.getDrawMillis(), flock.size(), flock.getTick(),
+				q == null ? 0 : q.getLevel());
+	}
+
+	/**
+	 * Post the changes in a JSON object to the Flock as one batch. Nothing is
+	 * posted unless the whole object is valid.
+	 * 
+	 * @param json
+	 *            Object of parameter names to numbers, or to [min, max] pairs
+	 *            for ranges
+	 * @return null if the changes were posted, otherwise what was wrong
+	 */
+	String change(String json) {
+		ArrayList<String> names = new ArrayList<String>();
+		ArrayList<float[]> values = new ArrayList<float[]>();
+		try {
+			JsonReader r = new JsonReader(json);
+			r.expect('{');
+			if (!r.skip('}')) {
+				do {
+					names.add(r.readString());
+					r.expect(':');
+					values.add(r.readNumbers(names.get(names.size() - 1)));
+				} while (r.skip(','));
+				r.expect('}');
+			}
+			r.expectEnd();
+		} catch (IllegalArgumentException e) {
+			return e.getMessage();
+		}
+		queue.beginBatch();
+		for (int i = 0; i < names.size(); i++) {
+			String error = post(names.get(i), values.get(i));
+			if (error != null) {
+				queue.abortBatch();
+				return error;
+			}
+		}
+		queue.commitBatch();
+		return null;
+	}
+
+	/**
+	 * Post the command for one parameter change.
+	 * 
+	 * @param name
+	 *            Name of the parameter, as in params()
+	 * @param v
+	 *            New value, or minimum and maximum for ranges
+	 * @return null if the change was posted, otherwise what was wrong
+	 */
+	private String post(String name, float[] v) {
+		int type;
+		boolean range = false;
+		if ("focusSpeed".equals(name)) {
+			type = FlockCommandQueue.SET_FOCUS_SPEED;
+		} else if ("drawSize".equals(name)) {
+			type = FlockCommandQueue.SET_DRAW_SIZE;
+		} else if ("speedThreshold".equals(name)) {
+			type = FlockCommandQueue.SET_SPEED_THRESHOLD;
+		} else if ("magForce".equals(name)) {
+			type = FlockCommandQueue.SET_MAG_FORCE;
+		} else if ("mode".equals(name)) {
+			type = FlockCommandQueue.SET_MODE;
+		} else {
+			range = true;
+			if ("springLength".equals(name)) {
+				type = FlockCommandQueue.SET_SPRING_LENGTH_RANGE;
+			} else if ("springConstant".equals(name)) {
+				type = FlockCommandQueue.SET_SPRING_CONSTANT_RANGE;
+			} else if ("red".equals(name)) {
+				type = FlockCommandQueue.SET_RED_RANGE;
+			} else if ("green".equals(name)) {
+				type = FlockCommandQueue.SET_GREEN_RANGE;
+			} else if ("blue".equals(name)) {
+				type = FlockCommandQueue.SET_BLUE_RANGE;
+			} else if ("alpha".equals(name)) {
+				type = FlockCommandQueue.SET_ALPHA_RANGE;
+			} else {
+				return "unknown parameter " + name;
+			}
+		}
+		if (v.length != (range ? 2 : 1)) {
+			return name + (range ? " takes [min, max]" : " takes a single number");
+		}
+		if (!queue.post(type, v[0], range ? v[1] : 0, 0)) {
+			return "too many changes at once";
+		}
+		return null;
+	}
+
+	/**
+	 * 
+	 * @param s
+	 *            Text
+	 * @return The text escaped for use inside a JSON string
+	 */
+	static String escape(String s) {
+		StringBuilder b = new StringBuilder(s.length() + 8);
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '"':
+				b.append("\\\"");
+				break;
+			case '\\':
+				b.append("\\\\");
+				break;
+			case '\n':
+				b.append("\\n");
+				break;
+			case '\r':
+				b.append("\\r");
+				break;
+			case '\t':
+				b.append("\\t");
+				break;
+			default:
+				if (c < 0x20 || c == 0x2028 || c == 0x2029) {
+					b.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+				} else {
+					b.append(c);
+				}
+			}
+		}
+		return b.toString();
+	}
+
+	/**
+	 * 
+	 * @param in
+	 *            Request body
+	 * @return The body as text
+	 * @throws IOException
+	 *             If reading fails
+	 */
+	private static String readBody(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		for (int n = in.read(buf); n >= 0; n = in.read(buf)) {
+			out.write(buf, 0, n);
+		}
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Send a JSON response.
+	 * 
+	 * @param e
+	 *            Exchange to respond to
+	 * @param status
+	 *            HTTP status code
+	 * @param json
+	 *            Body of the response
+	 * @throws IOException
+	 *             If writing fails
+	 */
+	private static void respond(HttpExchange e, int status, String json) throws IOException {
+		byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+		e.getResponseHeaders().set("Content-Type", "application/json");
+		e.sendResponseHeaders(status, bytes.length);
+		OutputStream out = e.getResponseBody();
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Reads the parts of JSON which a change request may use: one object of
+	 * strings mapped to numbers or arrays of numbers. Anything else, or
+	 * anything which isn't valid JSON, is rejected with an
+	 * IllegalArgumentException saying what was wrong and where.
+	 */
+	private static class JsonReader {
+		private final String text;
+		private int pos;
+
+		/**
+		 * Create a new JsonReader.
+		 * 
+		 * @param text
+		 *            JSON to read
+		 */
+		JsonReader(String text) {
+			this.text = text;
+			pos = 0;
+		}
+
+		/**
+		 * Skip past a character, and any whitespace before it.
+		 * 
+		 * @param c
+		 *            Character expected next
+		 */
+		void expect(char c) {
+			if (!skip(c)) {
+				throw error("expected '" + c + "'");
+			}
+		}
+
+		/**
+		 * Skip past a character, and any whitespace before it, if it is next.
+		 * 
+		 * @param c
+		 *            Character which may be next
+		 * @return Whether or not it was next
+		 */
+		boolean skip(char c) {
+			skipWhitespace();
+			if (pos < text.length() && text.charAt(pos) == c) {
+				pos++;
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Check that nothing but whitespace is left.
+		 */
+		void expectEnd() {
+			skipWhitespace();
+			if (pos < text.length()) {
+				throw error("unexpected text after the object");
+			}
+		}
+
+		/**
+		 * 
+		 * @return The string starting at the next non-whitespace character,
+		 *         with its escapes undone
+		 */
+		String readString() {
+			expect('"');
+			StringBuilder b = new StringBuilder();
+			while (true) {
+				if (pos >= text.length()) {
+					throw error("unterminated string");
+				}
+				char c = text.charAt(pos++);
+				if (c == '"') {
+					return b.toString();
+				}
+				if (c < 0x20) {
+					throw error("control character in string");
+				}
+				if (c != '\\') {
+					b.append(c);
+					continue;
+				}
+				if (pos >= text.length()) {
+					throw error("unterminated string");
+				}
+				c = text.charAt(pos++);
+				switch (c) {
+				case '"':
+				case '\\':
+				case '/':
+					b.append(c);
+					break;
+				case 'b':
+					b.append('\b');
+					break;
+				case 'f':
+					b.append('\f');
+					break;
+				case 'n':
+					b.append('\n');
+					break;
+				case 'r':
+					b.append('\r');
+					break;
+				case 't':
+					b.append('\t');
+					break;
+				case 'u':
+					if (pos + 4 > text.length()) {
+						throw error("bad \\u escape");
+					}
+					try {
+						b.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+					} catch (NumberFormatException e) {
+						throw error("bad \\u escape");
+					}
+					pos += 4;
+					break;
+				default:
+					throw error("bad escape");
+				}
+			}
+		}
+
+		/**
+		 * Read a value which must be a number or an array of numbers.
+		 * 
+		 * @param name
+		 *            Name the value belongs to, for error messages
+		 * @return The number, or the numbers in the array
+		 */
+		float[] readNumbers(String name) {
+			if (!skip('[')) {
+				return new float[] { readNumber(name) };
+			}
+			float[] v = new float[0];
+			if (skip(']')) {
+				return v;
+			}
+			do {
+				v = Arrays.copyOf(v, v.length + 1);
+				v[v.length - 1] = readNumber(name);
+			} while (skip(','));
+			expect(']');
+			return v;
+		}
+
+		/**
+		 * Read a number, which must follow JSON's grammar: no leading plus,
+		 * no leading zeros, no hexadecimal, NaN or Infinity.
+		 * 
+		 * @param name
+		 *            Name the number belongs to, for error messages
+		 * @return The number
+		 */
+		float readNumber(String name) {
+			skipWhitespace();
+			int start = pos;
+			if (peek() == '-') {
+				pos++;
+			}
+			if (peek() == '0') {
+				pos++;
+			} else if (!digits()) {
+				pos = start;
+				throw error("bad value for " + name);
+			}
+			if (peek() == '.') {
+				pos++;
+				if (!digits()) {
+					throw error("bad value for " + name);
+				}
+			}
+			if (peek() == 'e' || peek() == 'E') {
+				pos++;
+				if (peek() == '+' || peek() == '-') {
+					pos++;
+				}
+				if (!digits()) {
+					throw error("bad value for " + name);
+				}
+			}
+			return Float.parseFloat(text.substring(start, pos));
+		}
+
+		/**
+		 * Skip a run of digits.
+		 * 
+		 * @return Whether or not there was at least one
+		 */
+		private boolean digits() {
+			int start = pos;
+			while (peek() >= '0' && peek() <= '9') {
+				pos++;
+			}
+			return pos > start;
+		}
+
+		/**
+		 * 
+		 * @return The next character, or 0 at the end of the text
+		 */
+		private char peek() {
+			return pos < text.length() ? text.charAt(pos) : 0;
+		}
+
+		/**
+		 * Skip any whitespace.
+		 */
+		private void skipWhitespace() {
+			while (pos < text.length()) {
+				char c = text.charAt(pos);
+				if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+					return;
+				}
+				pos++;
+			}
+		}
+
+		/**
+		 * 
+		 * @param what
+		 *            What was wrong
+		 * @return An exception saying what was wrong, and where
+		 */
+		private IllegalArgumentException error(String what) {
+			return new IllegalArgumentException(what + " at character " + pos);
+		}
+	}
+}
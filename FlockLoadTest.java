@@ -0,0 +1,386 @@
+package art2;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import processing.core.PApplet;
+import processing.core.PVector;
+
+/**
+ * Headless soak test for Flock. Runs a scripted session at each of several
+ * sizes of Flock and measures how long each update takes, how much time the
+ * garbage collector takes in total and in its longest pause, and how much
+ * heap is used. The session cycles
+ * through four phases, each lasting a few seconds:
+ * 
+ * <ol>
+ * <li>Bursts of MovingThings added and removed</li>
+ * <li>The focus moving along its noise path</li>
+ * <li>Storms of repulsion from random points</li>
+ * <li>Sweeps of the spring length and constant ranges</li>
+ * </ol>
+ * 
+ * Results can be recorded as a baseline, and later runs fail, with a nonzero
+ * exit code, if any measurement is worse than the baseline by more than a
+ * tolerance or is missing from it, as it is for a size of Flock the baseline
+ * was not recorded with. A percentile of update times is only measured, and checked, if
+ * the session had enough updates for at least 10 of them to lie above it.
+ * 
+ * Run as <code>java art2.FlockLoadTest [name=value ...]</code> with any of
+ * <code>seconds</code> (length of each session, default 60),
+ * <code>counts</code> (comma separated sizes, default 1000,10000),
+ * <code>baseline</code> (properties file, default flock-baseline.properties),
+ * <code>record</code> (true to write the baseline instead of checking it;
+ * checking without a baseline exits with code 2),
+ * <code>tolerance</code> (allowed ratio to the baseline, default 1.25) and
+ * <code>seed</code>.
+ */
+public class FlockLoadTest {
+	// Length of each phase of a session, and of the unmeasured warm up
+	private static final long PHASE_NANOS = 5000000000L;
+	private static final long WARM_UP_NANOS = 3000000000L;
+
+	// Names of the measurements, and how much worse than the baseline each
+	// may be regardless of the tolerance, since small values are noisy
+	private static final String[] METRICS = { "tickP50Millis", "tickP99Millis", "tickP999Millis",
+			"gcMillisPerMinute", "gcPauseMaxMillis", "heapPeakMegabytes" };
+	private static final double[] SLACK = { .05, .2, 2, 20, 5, 16 };
+
+	// Longest stop-the-world collection since the last reset, in
+	// milliseconds, written by the JVM's notification thread
+	private static volatile long gcPauseMax;
+
+	private final PApplet p;
+	private final long seed;
+	private final long sessionNanos;
+
+	/**
+	 * Create a new FlockLoadTest.
+	 * 
+	 * @param p
+	 *            Headless PApplet for the Flocks
+	 * @param seed
+	 *            Seed for the Flocks
+	 * @param seconds
+	 *            Length of each session
+	 */
+	public FlockLoadTest(PApplet p, long seed, double seconds) {
+		this.p = p;
+		this.seed = seed;
+		sessionNanos = (long) (seconds * 1e9);
+	}
+
+	/**
+	 * Run one session.
+	 * 
+	 * @param count
+	 *            Number of MovingThings to keep in the Flock
+	 * @return Measurements, named as in METRICS
+	 */
+	public double[] run(int count) {
+		Flock f = new Flock(p, seed);
+		FlockRandom rng = f.getRandom().split(1);
+		for (int i = 0; i < count; i++) {
+			f.addConnection(rng.random(0, i, 0, 0, p.width), rng.random(1, i, 0, 0, p.height), true);
+		}
+
+		long[] ticks = new long[1 << 16];
+		int numTicks = 0;
+		long gcMillis = 0;
+		boolean measuring = false;
+		long start = System.nanoTime();
+		long now = start;
+		for (long tick = 0; now - start < WARM_UP_NANOS + sessionNanos; tick++) {
+			if (!measuring && now - start >= WARM_UP_NANOS) {
+				measuring = true;
+				resetHeapPeak();
+				gcMillis = -gcMillis();
+				gcPauseMax = 0;
+			}
+			int phase = (int) ((now - start) / PHASE_NANOS % 4);
+			script(f, rng, phase, tick, count);
+			long t = System.nanoTime();
+			f.update();
+			now = System.nanoTime();
+			if (measuring) {
+				if (numTicks == ticks.length) {
+					ticks = Arrays.copyOf(ticks, numTicks * 2);
+				}
+				ticks[numTicks++] = now - t;
+			}
+		}
+		gcMillis += gcMillis();
+
+		Arrays.sort(ticks, 0, numTicks);
+		double[] result = new double[METRICS.length];
+		result[0] = percentile(ticks, numTicks, .5) / 1e6;
+		result[1] = percentile(ticks, numTicks, .99) / 1e6;
+		result[2] = percentile(ticks, numTicks, .999) / 1e6;
+		result[3] = gcMillis / (sessionNanos / 6e10);
+		result[4] = gcPauseMax;
+		result[5] = heapPeak() / (1024.0 * 1024.0);
+		return result;
+	}
+
+	/**
+	 * Give a Flock the input for one update of a session.
+	 * 
+	 * @param f
+	 *            Flock under test
+	 * @param rng
+	 *            Random numbers for the script
+	 * @param phase
+	 *            Current phase of the session
+	 * @param tick
+	 *            Number of updates so far
+	 * @param count
+	 *            Number of MovingThings the Flock should have between bursts
+	 */
+	private void script(Flock f, FlockRandom rng, int phase, long tick, int count) {
+		switch (phase) {
+		case 0:
+			// Add a tenth of the Flock over 10 updates, then take it away
+			// again over the next 10
+			int burst = Math.max(count / 100, 1);
+			for (int i = 0; i < burst; i++) {
+				if (tick % 20 < 10) {
+					f.addConnection(rng.random(2, i, tick, 0, p.width), rng.random(3, i, tick, 0, p.height), true);
+				} else if (f.size() > count) {
+					f.removeLastThing();
+				}
+			}
+			break;
+		case 1:
+			f.moveFocus();
+			break;
+		case 2:
+			for (int i = 0; i < 8; i++) {
+				f.runAwayFrom(new PVector(rng.random(4, i, tick, 0, p.width), rng.random(5, i, tick, 0, p.height)));
+			}
+			break;
+		case 3:
+			float t = (float) Math.sin(tick * .01);
+			f.setSpringLengthMin(20 + 10 * t);
+			f.setSpringLengthMax(60 + 30 * t);
+			f.setSpringConstantMin(.005f + .003f * t);
+			f.setSpringConstantMax(.02f + .01f * t);
+			break;
+		}
+	}
+
+	/**
+	 * 
+	 * @param sorted
+	 *            Sorted values
+	 * @param n
+	 *            Number of values
+	 * @param q
+	 *            Fraction of values to be at or below the result
+	 * @return The q-th quantile of the values, or NaN if fewer than 10 values
+	 *         would lie above it
+	 */
+	private static double percentile(long[] sorted, int n, double q) {
+		if (n * (1 - q) < 10) {
+			return Double.NaN;
+		}
+		return sorted[Math.min((int) Math.ceil(q * n) - 1, n - 1)];
+	}
+
+	/**
+	 * 
+	 * @return Total time spent in garbage collection by this JVM in
+	 *         milliseconds
+	 */
+	private static long gcMillis() {
+		long total = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			total += Math.max(gc.getCollectionTime(), 0);
+		}
+		return total;
+	}
+
+	/**
+	 * Listen for the end of every collection, keeping the longest
+	 * stop-the-world one in gcPauseMax. Concurrent cycles run alongside the
+	 * application, so their durations are not pauses and are skipped, as are
+	 * the collections the test asks for itself.
+	 */
+	private static void listenForPauses() {
+		NotificationListener listener = new NotificationListener() {
+			public void handleNotification(Notification n, Object handback) {
+				if (!n.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+					return;
+				}
+				GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo
+						.from((CompositeData) n.getUserData());
+				if (info.getGcName().contains("Concurrent") || info.getGcAction().contains("concurrent")
+						|| info.getGcCause().equals("System.gc()")) {
+					return;
+				}
+				long d = info.getGcInfo().getDuration();
+				if (d > gcPauseMax) {
+					gcPauseMax = d;
+				}
+			}
+		};
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			if (gc instanceof NotificationEmitter) {
+				((NotificationEmitter) gc).addNotificationListener(listener, null, null);
+			}
+		}
+	}
+
+	/**
+	 * Start measuring heap use afresh.
+	 */
+	private static void resetHeapPeak() {
+		System.gc();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				pool.resetPeakUsage();
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * @return The sum of the highest use of each heap pool since the last
+	 *         reset, in bytes. The pools may not have peaked at the same time,
+	 *         so this overestimates the true peak.
+	 */
+	private static long heapPeak() {
+		long total = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				total += pool.getPeakUsage().getUsed();
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Compare a session's results with the baseline.
+	 * 
+	 * @param count
+	 *            Size of Flock the session ran with
+	 * @param result
+	 *            Measurements of the session
+	 * @param baseline
+	 *            Baseline measurements
+	 * @param tolerance
+	 *            Allowed ratio of a measurement to its baseline
+	 * @return Whether or not every measurement is in the baseline and within
+	 *         the tolerance
+	 */
+	private static boolean check(int count, double[] result, Properties baseline, double tolerance) {
+		boolean ok = true;
+		for (int m = 0; m < METRICS.length; m++) {
+			String base = baseline.getProperty(count + "." + METRICS[m]);
+			if (base == null) {
+				System.out.printf("  %-18s %10.3f  MISSING from baseline; run with record=true to add it%n",
+						METRICS[m], result[m]);
+				ok = false;
+				continue;
+			}
+			double b = Double.parseDouble(base);
+			if (Double.isNaN(result[m]) || Double.isNaN(b)) {
+				System.out.printf("  %-18s %10.3f  (too few updates to compare)%n", METRICS[m], result[m]);
+				continue;
+			}
+			double limit = Math.max(b * tolerance, b + SLACK[m]);
+			boolean pass = result[m] <= limit;
+			System.out.printf("  %-18s %10.3f  baseline %10.3f  limit %10.3f  %s%n", METRICS[m], result[m], b, limit,
+					pass ? "ok" : "REGRESSED");
+			ok &= pass;
+		}
+		return ok;
+	}
+
+	/**
+	 * Run the load test.
+	 * 
+	 * @param args
+	 *            Settings as name=value
+	 * @throws IOException
+	 *             If the baseline cannot be read or written
+	 */
+	public static void main(String[] args) throws IOException {
+		Properties settings = new Properties();
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (eq < 0) {
+				throw new IllegalArgumentException("Expected name=value, got " + arg);
+			}
+			settings.setProperty(arg.substring(0, eq), arg.substring(eq + 1));
+		}
+		double seconds = Double.parseDouble(settings.getProperty("seconds", "60"));
+		List<String> counts = Arrays.asList(settings.getProperty("counts", "1000,10000").split(","));
+		String baselineFile = settings.getProperty("baseline", "flock-baseline.properties");
+		boolean record = Boolean.parseBoolean(settings.getProperty("record", "false"));
+		double tolerance = Double.parseDouble(settings.getProperty("tolerance", "1.25"));
+		long seed = Long.parseLong(settings.getProperty("seed", "1"));
+
+		listenForPauses();
+		PApplet p = new PApplet();
+		p.width = 1280;
+		p.height = 720;
+		FlockLoadTest test = new FlockLoadTest(p, seed, seconds);
+
+		Properties baseline = new Properties();
+		if (!record) {
+			if (!new File(baselineFile).isFile()) {
+				System.err.println("No baseline at " + baselineFile + "; run with record=true to create one");
+				System.exit(2);
+			}
+			InputStream in = new FileInputStream(baselineFile);
+			try {
+				baseline.load(in);
+			} finally {
+				in.close();
+			}
+		}
+		boolean ok = true;
+		for (String c : counts) {
+			int count = Integer.parseInt(c.trim());
+			System.out.println(count + " MovingThings, " + seconds + " s");
+			double[] result = test.run(count);
+			if (record) {
+				for (int m = 0; m < METRICS.length; m++) {
+					baseline.setProperty(count + "." + METRICS[m], Double.toString(result[m]));
+					System.out.printf("  %-18s %10.3f%n", METRICS[m], result[m]);
+				}
+			} else {
+				ok &= check(count, result, baseline, tolerance);
+			}
+		}
+		if (record) {
+			OutputStream out = new FileOutputStream(baselineFile);
+			try {
+				baseline.store(out, "FlockLoadTest baseline, " + seconds + " s sessions");
+			} finally {
+				out.close();
+			}
+		}
+		if (!ok) {
+			System.exit(1);
+		}
+	}
+}
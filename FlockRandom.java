@@ -0,0 +1,229 @@
+package art2;
+
+/**
+ * A counter-based random number generator. Instead of stepping a shared state
+ * forward, every number is a hash of the seed, a stream, a particle index and
+ * a tick. The same question always gets the same answer no matter which order
+ * the questions are asked in, so a Flock seeded with the same value produces
+ * the same run whether its MovingThings are updated in order, out of order or
+ * from many threads at once.
+ * 
+ * It also provides smooth noise in the style of Perlin noise, so that a Flock
+ * needs nothing from its PApplet while updating.
+ */
+public class FlockRandom {
+	// Streams keep unrelated uses of the generator from producing correlated
+	// numbers for the same particle and tick
+	public static final int FOCUS_X = 0;
+	public static final int FOCUS_Y = 1;
+	public static final int OSCILLATION = 2;
+	public static final int SPRING_LENGTH = 3;
+	public static final int SPRING_CONSTANT = 4;
+	public static final int SPAWN_X = 5;
+	public static final int SPAWN_Y = 6;
+	public static final int OSCILLATION_NOISE = 7;
+	public static final int FOCUS_NOISE_X = 8;
+	public static final int FOCUS_NOISE_Y = 9;
+	public static final int FIELD_NOISE = 10;
+
+	// Number of octaves of noise, each at twice the frequency and half the
+	// amplitude of the last, as in PApplet.noise()
+	private static final int OCTAVES = 4;
+
+	private final long seed;
+
+	/**
+	 * Create a new FlockRandom.
+	 * 
+	 * @param seed
+	 *            Seed which every number produced is derived from
+	 */
+	public FlockRandom(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * 
+	 * @return The seed this FlockRandom was created with
+	 */
+	public long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * Create a new FlockRandom whose numbers are independent of this one's,
+	 * for example to give each of several Flocks their own generator from a
+	 * single seed.
+	 * 
+	 * @param n
+	 *            Index of the child generator
+	 * @return A new FlockRandom
+	 */
+	public FlockRandom split(long n) {
+		return new FlockRandom(mix(seed ^ mix(n + 0x632BE59BD9B4E019L)));
+	}
+
+	/**
+	 * Get the random number for a particle at a tick.
+	 * 
+	 * @param stream
+	 *            What the number is used for
+	 * @param index
+	 *            Index of the particle
+	 * @param tick
+	 *            Number of updates the Flock has been through
+	 * @return A number in [0, 1)
+	 */
+	public float random(int stream, long index, long tick) {
+		long h = mix(seed + stream * 0x9E3779B97F4A7C15L);
+		h = mix(h ^ index);
+		h = mix(h ^ tick);
+		// Top 24 bits fill a float mantissa exactly
+		return (h >>> 40) * 0x1.0p-24f;
+	}
+
+	/**
+	 * Get the random number for a particle at a tick, scaled to a range.
+	 * 
+	 * @param stream
+	 *            What the number is used for
+	 * @param index
+	 *            Index of the particle
+	 * @param tick
+	 *            Number of updates the Flock has been through
+	 * @param min
+	 *            Lower bound
+	 * @param max
+	 *            Upper bound
+	 * @return A number in [min, max)
+	 */
+	public float random(int stream, long index, long tick, float min, float max) {
+		return min + random(stream, index, tick) * (max - min);
+	}
+
+	/**
+	 * Get smooth 1D noise: random values at whole numbers, blended smoothly
+	 * in between, summed over several octaves.
+	 * 
+	 * @param stream
+	 *            What the noise is used for
+	 * @param x
+	 *            Position along the noise
+	 * @return A number in [0, 1), changing smoothly with x
+	 */
+	public float noise(int stream, float x) {
+		long base = mix(seed + stream * 0x9E3779B97F4A7C15L);
+		float sum = 0;
+		float amplitude = .5f;
+		float total = 0;
+		for (int o = 0; o < OCTAVES; o++) {
+			long ix = floor(x);
+			float t = fade(x - ix);
+			float a = lattice(base, ix, o);
+			float b = lattice(base, ix + 1, o);
+			sum += amplitude * (a + (b - a) * t);
+			total += amplitude;
+			x *= 2;
+			amplitude *= .5f;
+		}
+		return sum / total;
+	}
+
+	/**
+	 * Get smooth 3D noise, as noise(stream, x) but blending between the
+	 * random values at the corners of each unit cube.
+	 * 
+	 * @param stream
+	 *            What the noise is used for
+	 * @param x
+	 *            First coordinate
+	 * @param y
+	 *            Second coordinate
+	 * @param z
+	 *            Third coordinate
+	 * @return A number in [0, 1), changing smoothly with x, y and z
+	 */
+	public float noise(int stream, float x, float y, float z) {
+		long base = mix(seed + stream * 0x9E3779B97F4A7C15L);
+		float sum = 0;
+		float amplitude = .5f;
+		float total = 0;
+		for (int o = 0; o < OCTAVES; o++) {
+			long fx = floor(x);
+			long fy = floor(y);
+			long fz = floor(z);
+			float tx = fade(x - fx);
+			float ty = fade(y - fy);
+			float tz = fade(z - fz);
+			float v = 0;
+			for (int corner = 0; corner < 8; corner++) {
+				int cx = corner & 1;
+				int cy = (corner >> 1) & 1;
+				int cz = corner >> 2;
+				// Each corner gets its own index from its three coordinates
+				long index = mix(mix(fx + cx) ^ (fy + cy)) ^ (fz + cz);
+				float w = (cx == 0 ? 1 - tx : tx) * (cy == 0 ? 1 - ty : ty) * (cz == 0 ? 1 - tz : tz);
+				v += w * lattice(base, index, o);
+			}
+			sum += amplitude * v;
+			total += amplitude;
+			x *= 2;
+			y *= 2;
+			z *= 2;
+			amplitude *= .5f;
+		}
+		return sum / total;
+	}
+
+	/**
+	 * 
+	 * @param x
+	 *            Any number
+	 * @return The largest whole number no bigger than x
+	 */
+	private static long floor(float x) {
+		long i = (long) x;
+		return x < i ? i - 1 : i;
+	}
+
+	/**
+	 * 
+	 * @param t
+	 *            Position between two whole numbers, from 0 to 1
+	 * @return Smoothed position, with zero slope at both ends
+	 */
+	private static float fade(float t) {
+		return t * t * (3 - 2 * t);
+	}
+
+	/**
+	 * A random value for one point of the noise lattice. Hashed more cheaply
+	 * than random(), since noise needs several per call.
+	 * 
+	 * @param base
+	 *            Mixed seed and stream
+	 * @param index
+	 *            Position of the lattice point
+	 * @param octave
+	 *            Octave of the noise
+	 * @return A number in [0, 1)
+	 */
+	private static float lattice(long base, long index, long octave) {
+		long h = mix(base ^ index * 0xD1B54A32D192ED03L ^ octave * 0xAEF17502108EF2D9L);
+		return (h >>> 40) * 0x1.0p-24f;
+	}
+
+	/**
+	 * The SplitMix64 finalizer, which spreads every input bit over every output
+	 * bit.
+	 * 
+	 * @param z
+	 *            Value to mix
+	 * @return Mixed value
+	 */
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+}
@@ -0,0 +1,248 @@
+package art2;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs a Flock's updates on a thread of its own at a fixed rate, separate from
+ * the PApplet's draw() loop. After every update the positions of all
+ * MovingThings are published as a FlockSnapshot, and draw() renders the
+ * newest one, so a slow frame no longer slows the simulation down and a slow
+ * update no longer holds up drawing.
+ * 
+ * While the simulation is running, the Flock must only be changed through an
+ * input queue from Flock.createInputQueue(). A QualityController given to the
+ * Flock is run on the simulation thread after every update, judging each
+ * frame by the slower of the last update and the last draw(). Listeners are
+ * also told about every update on the simulation thread, and can read the
+ * snapshot taken of it without capturing the Flock again.
+ */
+public class FlockSimulation implements Runnable {
+	private final Flock flock;
+	private final SnapshotBuffer snapshots;
+
+	// Time between updates in nanoseconds
+	private volatile long period;
+
+	// Whether or not to blend between the last two snapshots when drawing
+	private boolean interpolate;
+
+	// Whether or not to move the focus along its noise path every update
+	private volatile boolean moveFocus;
+
+	private volatile boolean running;
+	private Thread thread;
+
+	// Time taken by the last draw(), in nanoseconds, reported to the Flock's
+	// QualityController by the simulation thread
+	private volatile long drawNanos;
+
+	private final CopyOnWriteArrayList<Listener> listeners;
+
+	/**
+	 * Told about every update, on the simulation thread.
+	 */
+	public interface Listener {
+		/**
+		 * Called after each update with the snapshot just taken of the Flock,
+		 * before draw() can see it. The snapshot is reused for later updates,
+		 * so it must not be changed or kept after the call returns, and the
+		 * simulation waits for the call, so it should be quick.
+		 * 
+		 * @param s
+		 *            Snapshot of the update
+		 */
+		void updated(FlockSnapshot s);
+	}
+
+	/**
+	 * Create a new FlockSimulation.
+	 * 
+	 * @param flock
+	 *            Flock to update
+	 * @param ticksPerSecond
+	 *            Number of updates per second to aim for
+	 */
+	public FlockSimulation(Flock flock, float ticksPerSecond) {
+		this.flock = flock;
+		snapshots = new SnapshotBuffer(Math.max(flock.size(), 16));
+		setTickRate(ticksPerSecond);
+		interpolate = true;
+		moveFocus = false;
+		running = false;
+		listeners = new CopyOnWriteArrayList<Listener>();
+	}
+
+	/**
+	 * Start updating the Flock on a new platform thread.
+	 */
+	public void start() {
+		start(Executors.defaultThreadFactory());
+	}
+
+	/**
+	 * Start updating the Flock on a thread made by the given factory, for
+	 * example a factory for virtual threads.
+	 * 
+	 * @param factory
+	 *            Source of the simulation thread
+	 */
+	public void start(ThreadFactory factory) {
+		if (running) {
+			return;
+		}
+		running = true;
+		thread = factory.newThread(this);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop updating the Flock and wait for the current update to finish.
+	 */
+	public void stop() {
+		running = false;
+		if (thread != null) {
+			LockSupport.unpark(thread);
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			thread = null;
+		}
+	}
+
+	/**
+	 * The simulation loop. Updates the Flock and publishes a snapshot once
+	 * every period, skipping ahead rather than trying to catch up if it falls
+	 * more than a few updates behind.
+	 */
+	public void run() {
+		long next = System.nanoTime();
+		while (running) {
+			if (moveFocus) {
+				flock.moveFocus();
+			}
+			flock.update();
+			FlockSnapshot s = snapshots.getWriteBuffer();
+			flock.capture(s);
+			for (Listener l : listeners) {
+				l.updated(s);
+			}
+			snapshots.publish();
+			flock.endFrame(drawNanos);
+
+			next += period;
+			long now = System.nanoTime();
+			if (now - next > 4 * period) {
+				next = now;
+			}
+			while (running && (now = System.nanoTime()) < next) {
+				LockSupport.parkNanos(next - now);
+			}
+		}
+	}
+
+	/**
+	 * Draw the newest snapshot of the Flock. Must be called from the PApplet's
+	 * draw(). With interpolation on, draws a blend of the two newest snapshots
+	 * according to how much time has passed since the newest was taken, so
+	 * motion looks smooth at any frame rate at the cost of up to one update of
+	 * delay.
+	 */
+	public void draw() {
+		long start = System.nanoTime();
+		FlockSnapshot latest = snapshots.getLatest();
+		FlockSnapshot previous = snapshots.getPrevious();
+		if (interpolate && previous.getCount() > 0) {
+			float t = (float) (System.nanoTime() - latest.getTime()) / period;
+			flock.drawSnapshot(previous, latest, Math.min(Math.max(t, 0), 1));
+		} else {
+			flock.drawSnapshot(latest, latest, 1);
+		}
+		drawNanos = System.nanoTime() - start;
+	}
+
+	/**
+	 * Set the number of updates per second to aim for.
+	 * 
+	 * @param ticksPerSecond
+	 *            Target update rate
+	 */
+	public void setTickRate(float ticksPerSecond) {
+		period = (long) (1e9 / ticksPerSecond);
+	}
+
+	/**
+	 * 
+	 * @return Target number of updates per second
+	 */
+	public float getTickRate() {
+		return (float) (1e9 / period);
+	}
+
+	/**
+	 * Set whether or not to blend between the two newest snapshots when
+	 * drawing.
+	 * 
+	 * @param i
+	 *            Whether or not to interpolate
+	 */
+	public void setInterpolate(boolean i) {
+		interpolate = i;
+	}
+
+	/**
+	 * Set whether or not the simulation thread moves the focus along its noise
+	 * path before every update, in place of calling Flock.moveFocus() from
+	 * draw().
+	 * 
+	 * @param m
+	 *            Whether or not to move the focus
+	 */
+	public void setMoveFocus(boolean m) {
+		moveFocus = m;
+	}
+
+	/**
+	 * Start telling a Listener about every update. Can be called while the
+	 * simulation is running.
+	 * 
+	 * @param l
+	 *            Listener to add
+	 */
+	public void addListener(Listener l) {
+		listeners.add(l);
+	}
+
+	/**
+	 * Stop telling a Listener about updates.
+	 * 
+	 * @param l
+	 *            Listener to remove
+	 */
+	public void removeListener(Listener l) {
+		listeners.remove(l);
+	}
+
+	/**
+	 * 
+	 * @return Whether or not the simulation thread is running
+	 */
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Get the newest snapshot of the Flock, for reading positions without
+	 * drawing. Must only be called from the thread which calls draw().
+	 * 
+	 * @return Latest snapshot
+	 */
+	public FlockSnapshot getLatest() {
+		return snapshots.getLatest();
+	}
+}
@@ -0,0 +1,337 @@
+package art2;
+
+import java.util.Arrays;
+
+/**
+ * A copy of where every MovingThing in a Flock was at the end of one update,
+ * and of how the Flock was set to draw them at the time. Snapshots are filled
+ * in by Flock.capture() and can be read by other threads while the Flock
+ * carries on updating. Entry i always describes the MovingThing at index i in
+ * the Flock, so two snapshots of the same Flock can be blended together.
+ */
+public class FlockSnapshot {
+	// Position, velocity and fade of each MovingThing. A fade of 0 means the
+	// MovingThing should not be drawn.
+	private float[] x;
+	private float[] y;
+	private float[] vx;
+	private float[] vy;
+	private float[] fade;
+	private int count;
+
+	// Position of the focus
+	private float focusX;
+	private float focusY;
+
+	// Which update this is a snapshot of, and when it was taken in
+	// System.nanoTime() units
+	private long tick;
+	private long time;
+
+	// The Flock's drawing settings when the snapshot was taken, so drawing
+	// never reads them while another thread is changing them
+	private int mode = MovingThing.ELLIPSE;
+	private float drawSize = 10;
+	private int drawStride = 1;
+	private float maxSpeed = 9;
+	private float speedThreshold = 0;
+	private int trailLength = 10;
+	// Red, green, blue and alpha ranges, min then max of each
+	private final int[] colorRange = new int[8];
+
+	/**
+	 * Create a new, empty FlockSnapshot.
+	 * 
+	 * @param capacity
+	 *            Number of MovingThings to make room for
+	 */
+	public FlockSnapshot(int capacity) {
+		x = new float[capacity];
+		y = new float[capacity];
+		vx = new float[capacity];
+		vy = new float[capacity];
+		fade = new float[capacity];
+		count = 0;
+	}
+
+	/**
+	 * Make sure this snapshot has room for n MovingThings, growing it if not.
+	 * Entries already filled in are kept.
+	 * 
+	 * @param n
+	 *            Number of MovingThings
+	 */
+	public void ensureCapacity(int n) {
+		if (n > x.length) {
+			int size = Math.max(n, x.length * 2);
+			x = Arrays.copyOf(x, size);
+			y = Arrays.copyOf(y, size);
+			vx = Arrays.copyOf(vx, size);
+			vy = Arrays.copyOf(vy, size);
+			fade = Arrays.copyOf(fade, size);
+		}
+	}
+
+	/**
+	 * Make this snapshot an exact copy of another.
+	 * 
+	 * @param s
+	 *            Snapshot to copy
+	 */
+	public void copyFrom(FlockSnapshot s) {
+		ensureCapacity(s.count);
+		System.arraycopy(s.x, 0, x, 0, s.count);
+		System.arraycopy(s.y, 0, y, 0, s.count);
+		System.arraycopy(s.vx, 0, vx, 0, s.count);
+		System.arraycopy(s.vy, 0, vy, 0, s.count);
+		System.arraycopy(s.fade, 0, fade, 0, s.count);
+		count = s.count;
+		focusX = s.focusX;
+		focusY = s.focusY;
+		tick = s.tick;
+		time = s.time;
+		setStyle(s.mode, s.drawSize, s.drawStride, s.maxSpeed, s.speedThreshold, s.trailLength);
+		System.arraycopy(s.colorRange, 0, colorRange, 0, colorRange.length);
+	}
+
+	/**
+	 * Fill in entry i. The snapshot must already have room for it.
+	 * 
+	 * @param i
+	 *            Index of the MovingThing
+	 * @param x
+	 *            X position
+	 * @param y
+	 *            Y position
+	 * @param vx
+	 *            X velocity
+	 * @param vy
+	 *            Y velocity
+	 * @param fade
+	 *            Fade, 0 if the MovingThing should not be drawn
+	 */
+	void set(int i, float x, float y, float vx, float vy, float fade) {
+		this.x[i] = x;
+		this.y[i] = y;
+		this.vx[i] = vx;
+		this.vy[i] = vy;
+		this.fade[i] = fade;
+	}
+
+	/**
+	 * Set how many entries are filled in.
+	 * 
+	 * @param count
+	 *            Number of MovingThings
+	 */
+	void setCount(int count) {
+		this.count = count;
+	}
+
+	/**
+	 * Set where the focus was and which update this snapshot is of.
+	 * 
+	 * @param focusX
+	 *            X position of the focus
+	 * @param focusY
+	 *            Y position of the focus
+	 * @param tick
+	 *            Update number
+	 * @param time
+	 *            When the snapshot was taken, in System.nanoTime() units
+	 */
+	void setFrame(float focusX, float focusY, long tick, long time) {
+		this.focusX = focusX;
+		this.focusY = focusY;
+		this.tick = tick;
+		this.time = time;
+	}
+
+	/**
+	 * Record the Flock's drawing settings.
+	 * 
+	 * @param mode
+	 *            Draw mode
+	 * @param drawSize
+	 *            Size to draw each MovingThing
+	 * @param drawStride
+	 *            Draw every drawStride-th MovingThing
+	 * @param maxSpeed
+	 *            Speed which gets the top of each color range
+	 * @param speedThreshold
+	 *            Speed below which MovingThings are not drawn
+	 * @param trailLength
+	 *            Number of previous positions a TAIL is drawn through
+	 */
+	void setStyle(int mode, float drawSize, int drawStride, float maxSpeed, float speedThreshold,
+			int trailLength) {
+		this.mode = mode;
+		this.drawSize = drawSize;
+		this.drawStride = drawStride;
+		this.maxSpeed = maxSpeed;
+		this.speedThreshold = speedThreshold;
+		this.trailLength = trailLength;
+	}
+
+	/**
+	 * Record the Flock's color ranges, as Flock.setColorRangeRGBA() takes them.
+	 */
+	void setColorRangeRGBA(int rMin, int rMax, int gMin, int gMax, int bMin, int bMax, int aMin, int aMax) {
+		colorRange[0] = rMin;
+		colorRange[1] = rMax;
+		colorRange[2] = gMin;
+		colorRange[3] = gMax;
+		colorRange[4] = bMin;
+		colorRange[5] = bMax;
+		colorRange[6] = aMin;
+		colorRange[7] = aMax;
+	}
+
+	/**
+	 * 
+	 * @return Number of MovingThings in this snapshot
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * 
+	 * @param i
+	 *            Index of the MovingThing
+	 * @return Its x position
+	 */
+	public float getX(int i) {
+		return x[i];
+	}
+
+	/**
+	 * 
+	 * @param i
+	 *            Index of the MovingThing
+	 * @return Its y position
+	 */
+	public float getY(int i) {
+		return y[i];
+	}
+
+	/**
+	 * 
+	 * @param i
+	 *            Index of the MovingThing
+	 * @return Its x velocity
+	 */
+	public float getVX(int i) {
+		return vx[i];
+	}
+
+	/**
+	 * 
+	 * @param i
+	 *            Index of the MovingThing
+	 * @return Its y velocity
+	 */
+	public float getVY(int i) {
+		return vy[i];
+	}
+
+	/**
+	 * 
+	 * @param i
+	 *            Index of the MovingThing
+	 * @return How faded in it is, 0 if it should not be drawn
+	 */
+	public float getFade(int i) {
+		return fade[i];
+	}
+
+	/**
+	 * 
+	 * @return X position of the focus
+	 */
+	public float getFocusX() {
+		return focusX;
+	}
+
+	/**
+	 * 
+	 * @return Y position of the focus
+	 */
+	public float getFocusY() {
+		return focusY;
+	}
+
+	/**
+	 * 
+	 * @return Which update this is a snapshot of
+	 */
+	public long getTick() {
+		return tick;
+	}
+
+	/**
+	 * 
+	 * @return When this snapshot was taken, in System.nanoTime() units
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * 
+	 * @return Draw mode the Flock had
+	 */
+	public int getMode() {
+		return mode;
+	}
+
+	/**
+	 * 
+	 * @return Size the Flock drew each MovingThing
+	 */
+	public float getDrawSize() {
+		return drawSize;
+	}
+
+	/**
+	 * 
+	 * @return How many MovingThings the Flock stepped over for each one drawn
+	 */
+	public int getDrawStride() {
+		return drawStride;
+	}
+
+	/**
+	 * 
+	 * @return Speed which gets the top of each color range
+	 */
+	public float getMaxSpeed() {
+		return maxSpeed;
+	}
+
+	/**
+	 * 
+	 * @return Speed below which MovingThings are not drawn
+	 */
+	public float getSpeedThreshold() {
+		return speedThreshold;
+	}
+
+	/**
+	 * 
+	 * @return Number of previous positions the Flock drew each TAIL through
+	 */
+	public int getTrailLength() {
+		return trailLength;
+	}
+
+	/**
+	 * 
+	 * @param c
+	 *            0 to 7 for red, green, blue and alpha, min then max of each
+	 * @return That end of that color range
+	 */
+	public int getColorRange(int c) {
+		return colorRange[c];
+	}
+}
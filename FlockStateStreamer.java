@@ -0,0 +1,452 @@
+package art2;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Streams the state of a Flock after every update to other processes on the
+ * same machine, over loopback UDP. Consumers subscribe by sending a
+ * subscription datagram (see subscription()) to the streamer's port, and
+ * must resend it at least every few seconds to stay subscribed. Each
+ * subscription can ask for only every n-th MovingThing, and only those inside
+ * a rectangle.
+ * 
+ * The update thread only copies the Flock into a snapshot with publish(), or,
+ * with the streamer added as a listener to a FlockSimulation, copies the
+ * snapshot the simulation has already taken. Neither copies anything while
+ * there are no subscribers. Encoding and sending happen on the streamer's own
+ * thread, which sleeps until woken by a new snapshot and picks up the newest
+ * through a SnapshotBuffer, so a slow consumer never holds up an update; it
+ * just misses snapshots. Subscriptions are read on a second thread, which blocks on the
+ * socket until one arrives.
+ * 
+ * Each snapshot is sent to each subscriber as one or more big-endian
+ * datagrams of up to MAX_DATAGRAM bytes:
+ * 
+ * <pre>
+ * int   MAGIC
+ * int   sequence number, counting datagrams sent to this subscriber
+ * long  tick
+ * short part, short parts    index of this datagram within the snapshot
+ * int   count                MovingThings in the subscriber's view
+ * float centroidX, centroidY of every living MovingThing
+ * short cols, short rows     size of the density grid, 0 except in part 0
+ * short density[cols * rows] living MovingThings per cell of the window,
+ *                            row by row
+ * int   n                    MovingThings in this datagram, then for each
+ * float x, y, vx, vy
+ * </pre>
+ */
+public class FlockStateStreamer implements Runnable, FlockSimulation.Listener {
+	/** First int of every datagram, "FLK1" */
+	public static final int MAGIC = 0x464c4b31;
+	/** First int of a subscription datagram, "FLKS" */
+	public static final int SUBSCRIBE = 0x464c4b53;
+	/** Largest datagram sent */
+	public static final int MAX_DATAGRAM = 60000;
+
+	// Bytes in each datagram before the density grid and MovingThings, counting
+	// the MovingThing count which follows the grid
+	private static final int HEADER_SIZE = 40;
+
+	private static final int MAX_SUBSCRIBERS = 16;
+	// Time a subscription lasts without being renewed
+	private static final long EXPIRY_NANOS = 5000000000L;
+
+	private final Flock flock;
+	private final SnapshotBuffer snapshots;
+	private final int width;
+	private final int height;
+
+	// Size of the density grid
+	private int cols = 16;
+	private int rows = 9;
+	private short[] density;
+
+	private DatagramSocket socket;
+	private volatile Thread thread;
+	private Thread receiver;
+	private volatile boolean running;
+	private final CopyOnWriteArrayList<Subscription> subscriptions;
+
+	// Datagrams reused for every send and receive
+	private final ByteBuffer out;
+	private final DatagramPacket outPacket;
+	private final byte[] in;
+	private final DatagramPacket inPacket;
+
+	/**
+	 * What one consumer has asked for. Written by the receiving thread and
+	 * read by the sending thread, apart from sequence, which only the sending
+	 * thread uses.
+	 */
+	private static class Subscription {
+		final SocketAddress address;
+		volatile int decimation;
+		volatile float x0, y0, x1, y1;
+		volatile long renewed;
+		int sequence;
+
+		Subscription(SocketAddress address) {
+			this.address = address;
+		}
+	}
+
+	/**
+	 * Create a new FlockStateStreamer. Nothing is sent until start().
+	 * 
+	 * @param f
+	 *            Flock to stream
+	 */
+	public FlockStateStreamer(Flock f) {
+		flock = f;
+		snapshots = new SnapshotBuffer(1024);
+		width = f.getWidth();
+		height = f.getHeight();
+		density = new short[cols * rows];
+		subscriptions = new CopyOnWriteArrayList<Subscription>();
+		out = ByteBuffer.allocate(MAX_DATAGRAM);
+		outPacket = new DatagramPacket(out.array(), 0);
+		in = new byte[64];
+		inPacket = new DatagramPacket(in, in.length);
+	}
+
+	/**
+	 * Start listening for subscriptions and sending snapshots.
+	 * 
+	 * @param port
+	 *            Loopback port to listen on, or 0 for any free port
+	 * @throws IOException
+	 *             If the port cannot be opened
+	 */
+	public void start(int port) throws IOException {
+		socket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+		running = true;
+		thread = new Thread(this, "FlockStateStreamer");
+		thread.setDaemon(true);
+		receiver = new Thread(new Runnable() {
+			public void run() {
+				receive();
+			}
+		}, "FlockStateStreamer receiver");
+		receiver.setDaemon(true);
+		thread.start();
+		receiver.start();
+	}
+
+	/**
+	 * Stop sending and close the socket. Does nothing if the streamer was
+	 * never started.
+	 */
+	public void stop() {
+		if (socket == null) {
+			return;
+		}
+		running = false;
+		// Closing the socket wakes the receiving thread
+		socket.close();
+		Thread t = thread;
+		LockSupport.unpark(t);
+		try {
+			t.join();
+			receiver.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		thread = null;
+		receiver = null;
+		socket = null;
+	}
+
+	/**
+	 * Take a snapshot of the Flock for the streamer to send. Call on the
+	 * Flock's update thread after each update, unless the streamer is a
+	 * listener of the FlockSimulation updating the Flock.
+	 */
+	public void publish() {
+		if (subscriptions.isEmpty()) {
+			return;
+		}
+		flock.capture(snapshots.getWriteBuffer());
+		handOff();
+	}
+
+	/**
+	 * Copy a FlockSimulation's snapshot of the latest update for the streamer
+	 * to send, which is much quicker than capturing the Flock again.
+	 * 
+	 * @param s
+	 *            Snapshot of the update
+	 */
+	public void updated(FlockSnapshot s) {
+		if (subscriptions.isEmpty()) {
+			return;
+		}
+		snapshots.getWriteBuffer().copyFrom(s);
+		handOff();
+	}
+
+	/**
+	 * Pass the snapshot just written on to the sending thread and wake it.
+	 */
+	private void handOff() {
+		snapshots.publish();
+		Thread t = thread;
+		if (t != null) {
+			LockSupport.unpark(t);
+		}
+	}
+
+	/**
+	 * The sending thread's loop: sleep until a new snapshot is published, then
+	 * send it to every subscriber.
+	 */
+	public void run() {
+		long lastTick = -1;
+		while (running) {
+			FlockSnapshot s = snapshots.getLatest();
+			if (s.getTick() == lastTick || s.getTime() == 0) {
+				LockSupport.park(this);
+				continue;
+			}
+			lastTick = s.getTick();
+			try {
+				send(s);
+			} catch (IOException e) {
+				if (running) {
+					System.err.println("FlockStateStreamer: " + e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The receiving thread's loop: wait for subscription datagrams and record
+	 * them, until the socket is closed.
+	 */
+	private void receive() {
+		while (running) {
+			inPacket.setLength(in.length);
+			try {
+				socket.receive(inPacket);
+			} catch (IOException e) {
+				if (running) {
+					System.err.println("FlockStateStreamer: " + e);
+				}
+				continue;
+			}
+			ByteBuffer b = ByteBuffer.wrap(in, 0, inPacket.getLength());
+			if (inPacket.getLength() < 24 || b.getInt() != SUBSCRIBE) {
+				continue;
+			}
+			int decimation = b.getInt();
+			SocketAddress from = inPacket.getSocketAddress();
+			Subscription sub = null;
+			for (Subscription other : subscriptions) {
+				if (other.address.equals(from)) {
+					sub = other;
+				}
+			}
+			if (decimation <= 0) {
+				// Unsubscribe
+				subscriptions.remove(sub);
+				continue;
+			}
+			if (sub == null) {
+				if (subscriptions.size() == MAX_SUBSCRIBERS) {
+					continue;
+				}
+				sub = new Subscription(from);
+			}
+			sub.x0 = b.getFloat();
+			sub.y0 = b.getFloat();
+			sub.x1 = b.getFloat();
+			sub.y1 = b.getFloat();
+			sub.decimation = decimation;
+			sub.renewed = System.nanoTime();
+			subscriptions.addIfAbsent(sub);
+		}
+	}
+
+	/**
+	 * Send a snapshot to every subscriber, dropping expired subscriptions.
+	 * 
+	 * @param s
+	 *            Snapshot to send
+	 * @throws IOException
+	 *             If the socket fails
+	 */
+	private void send(FlockSnapshot s) throws IOException {
+		if (subscriptions.isEmpty()) {
+			return;
+		}
+		// Centroid and density of living MovingThings
+		float cx = 0;
+		float cy = 0;
+		int alive = 0;
+		Arrays.fill(density, (short) 0);
+		for (int i = 0; i < s.getCount(); i++) {
+			if (s.getFade(i) > 0) {
+				cx += s.getX(i);
+				cy += s.getY(i);
+				alive++;
+				int c = Math.min(Math.max((int) (s.getX(i) * cols / width), 0), cols - 1);
+				int r = Math.min(Math.max((int) (s.getY(i) * rows / height), 0), rows - 1);
+				if (density[r * cols + c] < Short.MAX_VALUE) {
+					density[r * cols + c]++;
+				}
+			}
+		}
+		if (alive > 0) {
+			cx /= alive;
+			cy /= alive;
+		}
+
+		long now = System.nanoTime();
+		for (Subscription sub : subscriptions) {
+			if (now - sub.renewed > EXPIRY_NANOS) {
+				subscriptions.remove(sub);
+				continue;
+			}
+			int decimation = sub.decimation;
+			int count = 0;
+			for (int i = 0; i < s.getCount(); i += decimation) {
+				if (inView(s, i, sub)) {
+					count++;
+				}
+			}
+			int firstCapacity = (MAX_DATAGRAM - HEADER_SIZE - 2 * cols * rows) / 16;
+			int capacity = (MAX_DATAGRAM - HEADER_SIZE) / 16;
+			int parts = count <= firstCapacity ? 1 : 1 + (count - firstCapacity + capacity - 1) / capacity;
+
+			int i = 0;
+			for (int part = 0; part < parts; part++) {
+				out.clear();
+				out.putInt(MAGIC);
+				out.putInt(sub.sequence++);
+				out.putLong(s.getTick());
+				out.putShort((short) part);
+				out.putShort((short) parts);
+				out.putInt(count);
+				out.putFloat(cx);
+				out.putFloat(cy);
+				if (part == 0) {
+					out.putShort((short) cols);
+					out.putShort((short) rows);
+					for (int c = 0; c < density.length; c++) {
+						out.putShort(density[c]);
+					}
+				} else {
+					out.putShort((short) 0);
+					out.putShort((short) 0);
+				}
+				int nPos = out.position();
+				out.putInt(0);
+				int n = 0;
+				int room = part == 0 ? firstCapacity : capacity;
+				for (; i < s.getCount() && n < room; i += decimation) {
+					if (inView(s, i, sub)) {
+						out.putFloat(s.getX(i));
+						out.putFloat(s.getY(i));
+						out.putFloat(s.getVX(i));
+						out.putFloat(s.getVY(i));
+						n++;
+					}
+				}
+				out.putInt(nPos, n);
+				outPacket.setData(out.array(), 0, out.position());
+				outPacket.setSocketAddress(sub.address);
+				socket.send(outPacket);
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * @param s
+	 *            Snapshot
+	 * @param i
+	 *            Index of a MovingThing in the snapshot
+	 * @param sub
+	 *            Subscription
+	 * @return Whether or not the MovingThing is alive and inside the
+	 *         subscription's rectangle
+	 */
+	private static boolean inView(FlockSnapshot s, int i, Subscription sub) {
+		return s.getFade(i) > 0 && s.getX(i) >= sub.x0 && s.getX(i) < sub.x1 && s.getY(i) >= sub.y0 && s.getY(i) < sub.y1;
+	}
+
+	/**
+	 * Build the datagram a consumer sends to subscribe, or renew its
+	 * subscription.
+	 * 
+	 * @param decimation
+	 *            Send every n-th MovingThing, or 0 to unsubscribe
+	 * @param x0
+	 *            Left edge of the rectangle to send
+	 * @param y0
+	 *            Top edge of the rectangle to send
+	 * @param x1
+	 *            Right edge of the rectangle to send
+	 * @param y1
+	 *            Bottom edge of the rectangle to send
+	 * @return Datagram contents
+	 */
+	public static byte[] subscription(int decimation, float x0, float y0, float x1, float y1) {
+		ByteBuffer b = ByteBuffer.allocate(24);
+		b.putInt(SUBSCRIBE);
+		b.putInt(decimation);
+		b.putFloat(x0);
+		b.putFloat(y0);
+		b.putFloat(x1);
+		b.putFloat(y1);
+		return b.array();
+	}
+
+	/**
+	 * Set the size of the density grid. Must be called before start(). The
+	 * grid must fit in the first datagram of a snapshot alongside at least one
+	 * MovingThing.
+	 * 
+	 * @param c
+	 *            Number of cells across the window
+	 * @param r
+	 *            Number of cells down the window
+	 */
+	public void setDensityGrid(int c, int r) {
+		if (thread != null) {
+			throw new IllegalStateException("Density grid must be set before start()");
+		}
+		if (c < 1 || r < 1 || (long) c * r > (MAX_DATAGRAM - HEADER_SIZE - 16) / 2) {
+			throw new IllegalArgumentException("Density grid of " + c + "x" + r + " does not fit in a "
+					+ MAX_DATAGRAM + " byte datagram");
+		}
+		cols = c;
+		rows = r;
+		density = new short[cols * rows];
+	}
+
+	/**
+	 * 
+	 * @return Port being listened on, or -1 if not started
+	 */
+	public int getPort() {
+		return socket == null ? -1 : socket.getLocalPort();
+	}
+
+	/**
+	 * 
+	 * @return Number of current subscribers
+	 */
+	public int getNumSubscribers() {
+		return subscriptions.size();
+	}
+}
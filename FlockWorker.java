@@ -0,0 +1,264 @@
+package art2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import processing.core.PApplet;
+
+/**
+ * One process of a FlockCluster. A FlockWorker runs a headless Flock holding
+ * the MovingThings inside one vertical strip of the window. Every tick it
+ * receives the commands for that tick and any MovingThings which have moved
+ * into its strip, updates, then sends back the state of its MovingThings
+ * along with any which have left its strip.
+ * 
+ * Each reply holds the tick number, the number of MovingThings updated, the
+ * state of those still in the strip as one block of floats, then the records
+ * of the live ones which left it.
+ * 
+ * Started by FlockCluster as
+ * <code>java art2.FlockWorker port index numWorkers width height seed</code>.
+ */
+public class FlockWorker {
+	// Message types sent by the FlockCluster
+	static final int QUIT = 0;
+	static final int TICK = 1;
+
+	// Size in bytes of one MovingThing sent between processes
+	static final int RECORD_SIZE = 6 * 4 + 4 * 4 + 1;
+	// Size in bytes of the position, velocity and fade of one MovingThing
+	static final int STATE_SIZE = 5 * 4;
+
+	private final Flock flock;
+	private final FlockSnapshot snapshot;
+	// Block of states to send, grown as needed
+	private ByteBuffer states;
+
+	// Which strip this worker owns, out of how many, across how wide a window
+	private final int index;
+	private final int numWorkers;
+	private final int width;
+
+	/**
+	 * Create a new FlockWorker.
+	 * 
+	 * @param p
+	 *            Headless PApplet for the Flock
+	 * @param index
+	 *            Index of the strip this worker owns
+	 * @param numWorkers
+	 *            Number of strips the window is cut into
+	 * @param seed
+	 *            Seed for the Flock
+	 */
+	public FlockWorker(PApplet p, int index, int numWorkers, long seed) {
+		flock = new Flock(p, seed);
+		snapshot = new FlockSnapshot(1024);
+		states = ByteBuffer.allocate(1024 * STATE_SIZE);
+		this.index = index;
+		this.numWorkers = numWorkers;
+		width = p.width;
+	}
+
+	/**
+	 * Serve ticks from the FlockCluster until told to quit or the connection
+	 * is closed.
+	 * 
+	 * @param in
+	 *            Stream from the FlockCluster
+	 * @param out
+	 *            Stream to the FlockCluster
+	 * @throws IOException
+	 *             If the connection fails
+	 */
+	public void serve(DataInputStream in, DataOutputStream out) throws IOException {
+		while (in.readInt() == TICK) {
+			int nCommands = in.readInt();
+			for (int i = 0; i < nCommands; i++) {
+				int type = in.readInt();
+				float a = in.readFloat();
+				float b = in.readFloat();
+				float c = in.readFloat();
+				flock.apply(type, a, b, c);
+			}
+			int nIn = in.readInt();
+			for (int i = 0; i < nIn; i++) {
+				readThing(in, flock);
+			}
+
+			flock.update();
+
+			// Hand off MovingThings which have left the strip, walking
+			// backwards since removal moves the last one into the gap. Dead
+			// ones are dropped instead.
+			int nLeft = 0;
+			int nOut = 0;
+			for (int i = flock.size() - 1; i >= 0; i--) {
+				MovingThing m = flock.getMovingThing(i);
+				if (!owns(m.getPos().x)) {
+					nLeft++;
+					if (m.isAlive()) {
+						nOut++;
+					}
+				}
+			}
+			flock.capture(snapshot);
+			out.writeLong(snapshot.getTick());
+			out.writeInt(snapshot.getCount());
+			out.writeInt(snapshot.getCount() - nLeft);
+			if (states.capacity() < snapshot.getCount() * STATE_SIZE) {
+				states = ByteBuffer.allocate(snapshot.getCount() * 2 * STATE_SIZE);
+			}
+			states.clear();
+			for (int i = 0; i < snapshot.getCount(); i++) {
+				if (owns(snapshot.getX(i))) {
+					states.putFloat(snapshot.getX(i));
+					states.putFloat(snapshot.getY(i));
+					states.putFloat(snapshot.getVX(i));
+					states.putFloat(snapshot.getVY(i));
+					states.putFloat(snapshot.getFade(i));
+				}
+			}
+			out.write(states.array(), 0, states.position());
+			out.writeInt(nOut);
+			for (int i = flock.size() - 1; i >= 0; i--) {
+				MovingThing m = flock.getMovingThing(i);
+				if (!owns(m.getPos().x)) {
+					if (m.isAlive()) {
+						writeThing(out, m);
+					}
+					flock.removeThing(i);
+				}
+			}
+			out.flush();
+		}
+	}
+
+	/**
+	 * 
+	 * @param x
+	 *            Horizontal coordinate
+	 * @return Whether or not a MovingThing at x belongs to this worker
+	 */
+	private boolean owns(float x) {
+		return ownerOf(x, numWorkers, width) == index;
+	}
+
+	/**
+	 * Find which worker owns a horizontal position. The outermost strips
+	 * stretch past the edges of the window so that every position has an
+	 * owner.
+	 * 
+	 * @param x
+	 *            Horizontal coordinate
+	 * @param numWorkers
+	 *            Number of strips the window is cut into
+	 * @param width
+	 *            Width of the window
+	 * @return Index of the worker
+	 */
+	static int ownerOf(float x, int numWorkers, int width) {
+		int w = (int) Math.floor(x * numWorkers / width);
+		return Math.min(Math.max(w, 0), numWorkers - 1);
+	}
+
+	/**
+	 * Write everything needed to recreate a MovingThing in another process.
+	 * 
+	 * @param out
+	 *            Stream to write to
+	 * @param m
+	 *            MovingThing to write
+	 * @throws IOException
+	 *             If writing fails
+	 */
+	static void writeThing(DataOutputStream out, MovingThing m) throws IOException {
+		out.writeFloat(m.getPos().x);
+		out.writeFloat(m.getPos().y);
+		out.writeFloat(m.getVelocity().x);
+		out.writeFloat(m.getVelocity().y);
+		out.writeFloat(m.getSpringLengthFrac());
+		out.writeFloat(m.getSpringConstantFrac());
+		out.writeInt(m.getAge());
+		out.writeInt(m.getLifetime());
+		out.writeInt(m.getFadeOut());
+		out.writeInt(m.getNoiseIndex());
+		out.writeBoolean(m.getNumConnections() > 0);
+	}
+
+	/**
+	 * Recreate a MovingThing written by writeThing() in a Flock. Negative
+	 * spring fractions keep the ones the Flock picks itself, and a negative
+	 * noise index has it oscillate by its index in the Flock.
+	 * 
+	 * @param in
+	 *            Stream to read from
+	 * @param f
+	 *            Flock to add the MovingThing to
+	 * @return The new MovingThing
+	 * @throws IOException
+	 *             If reading fails
+	 */
+	static MovingThing readThing(DataInputStream in, Flock f) throws IOException {
+		float x = in.readFloat();
+		float y = in.readFloat();
+		float vx = in.readFloat();
+		float vy = in.readFloat();
+		float lengthFrac = in.readFloat();
+		float constantFrac = in.readFloat();
+		int age = in.readInt();
+		int lifetime = in.readInt();
+		int fadeOut = in.readInt();
+		int noiseIndex = in.readInt();
+		boolean connected = in.readBoolean();
+		MovingThing m = f.addConnection(x, y, connected);
+		m.getVelocity().set(vx, vy);
+		if (lengthFrac >= 0) {
+			m.setSpringLengthFrac(lengthFrac);
+		}
+		if (constantFrac >= 0) {
+			m.setSpringConstantFrac(constantFrac);
+		}
+		m.setLifetime(lifetime, fadeOut);
+		m.setAge(age);
+		m.setNoiseIndex(noiseIndex);
+		return m;
+	}
+
+	/**
+	 * Connect to a FlockCluster and serve it.
+	 * 
+	 * @param args
+	 *            port index numWorkers width height seed
+	 * @throws IOException
+	 *             If the connection fails
+	 */
+	public static void main(String[] args) throws IOException {
+		int port = Integer.parseInt(args[0]);
+		int index = Integer.parseInt(args[1]);
+		int numWorkers = Integer.parseInt(args[2]);
+		PApplet p = new PApplet();
+		p.width = Integer.parseInt(args[3]);
+		p.height = Integer.parseInt(args[4]);
+		long seed = Long.parseLong(args[5]);
+
+		FlockWorker worker = new FlockWorker(p, index, numWorkers, seed);
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+		socket.setTcpNoDelay(true);
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+			out.writeInt(index);
+			out.flush();
+			worker.serve(in, out);
+		} finally {
+			socket.close();
+		}
+	}
+}
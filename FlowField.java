@@ -0,0 +1,232 @@
+package art2;
+
+import processing.core.PApplet;
+import processing.core.PImage;
+
+/**
+ * A grid of unit direction vectors covering the window, which MovingThings
+ * can be pushed along. Each cell's direction comes either from 3D Perlin
+ * noise, whose third coordinate slowly advances so the field drifts over
+ * time, or from the brightness of an image. Directions between cell centres
+ * are interpolated bilinearly.
+ * 
+ * A noise field is regenerated a few rows at a time, so the cost of keeping
+ * it moving is spread evenly across updates.
+ */
+public class FlowField {
+	private final PApplet p;
+	// Source of the noise, so regenerating never touches the PApplet
+	private final FlockRandom rng;
+
+	// Size of each cell in pixels, and the number of cells across and down
+	private final float cellSize;
+	private final int cols;
+	private final int rows;
+
+	// Direction of each cell, row by row
+	private final float[] dirX;
+	private final float[] dirY;
+
+	// Scale of the noise per cell, how far the noise moves each time the
+	// whole field has been regenerated, and the noise's current position
+	private float noiseScale = .08f;
+	private float drift = .02f;
+	private float z;
+
+	// Next row to regenerate, and whether or not to regenerate at all
+	private int nextRow;
+	private boolean animated;
+
+	/**
+	 * Create a new FlowField covering the window of a PApplet, filled from
+	 * noise with a random seed.
+	 * 
+	 * @param p
+	 *            PApplet supplying the window size
+	 * @param cellSize
+	 *            Size of each cell in pixels
+	 */
+	public FlowField(PApplet p, float cellSize) {
+		this(p, cellSize, ((long) Float.floatToIntBits(p.random(1)) << 32) ^ Float.floatToIntBits(p.random(1)));
+	}
+
+	/**
+	 * Create a new FlowField covering the window of a PApplet, filled from
+	 * noise.
+	 * 
+	 * @param p
+	 *            PApplet supplying the window size
+	 * @param cellSize
+	 *            Size of each cell in pixels
+	 * @param seed
+	 *            Seed for the noise
+	 */
+	public FlowField(PApplet p, float cellSize, long seed) {
+		this.p = p;
+		rng = new FlockRandom(seed);
+		this.cellSize = cellSize;
+		cols = (int) Math.ceil(p.width / cellSize) + 1;
+		rows = (int) Math.ceil(p.height / cellSize) + 1;
+		dirX = new float[cols * rows];
+		dirY = new float[cols * rows];
+		z = 0;
+		nextRow = 0;
+		animated = true;
+		for (int r = 0; r < rows; r++) {
+			generateRow(r);
+		}
+	}
+
+	/**
+	 * Regenerate the next few rows of a noise field. Once every row has been
+	 * regenerated the noise moves on, so the field keeps changing.
+	 * 
+	 * @param n
+	 *            Number of rows to regenerate
+	 */
+	public void regenerate(int n) {
+		if (!animated) {
+			return;
+		}
+		for (int k = 0; k < n; k++) {
+			generateRow(nextRow);
+			nextRow++;
+			if (nextRow == rows) {
+				nextRow = 0;
+				z += drift;
+			}
+		}
+	}
+
+	/**
+	 * Fill one row of the grid from noise.
+	 * 
+	 * @param r
+	 *            Row to fill
+	 */
+	private void generateRow(int r) {
+		for (int c = 0; c < cols; c++) {
+			// Noise clusters around .5, so stretch it over two turns to use
+			// every direction
+			float angle = rng.noise(FlockRandom.FIELD_NOISE, c * noiseScale, r * noiseScale, z) * 2 * PApplet.TWO_PI;
+			dirX[r * cols + c] = PApplet.cos(angle);
+			dirY[r * cols + c] = PApplet.sin(angle);
+		}
+	}
+
+	/**
+	 * Fill the grid from an image, stretched over the window, with the
+	 * brightness of each pixel giving a direction: black points right and
+	 * brightness turns anticlockwise from there. A field loaded from an image
+	 * no longer regenerates.
+	 * 
+	 * @param img
+	 *            Image to load
+	 */
+	public void loadFromImage(PImage img) {
+		img.loadPixels();
+		for (int r = 0; r < rows; r++) {
+			int y = Math.min(r * img.height / rows, img.height - 1);
+			for (int c = 0; c < cols; c++) {
+				int x = Math.min(c * img.width / cols, img.width - 1);
+				float angle = p.brightness(img.pixels[y * img.width + x]) / 255 * PApplet.TWO_PI;
+				dirX[r * cols + c] = PApplet.cos(angle);
+				dirY[r * cols + c] = PApplet.sin(angle);
+			}
+		}
+		animated = false;
+	}
+
+	/**
+	 * Find the direction of the field at a point, interpolated between the
+	 * four nearest cells. Points outside the window take the direction at the
+	 * nearest edge.
+	 * 
+	 * @param x
+	 *            X-coordinate
+	 * @param y
+	 *            Y-coordinate
+	 * @param out
+	 *            Array to put the x and y components of the direction in
+	 */
+	public void sample(float x, float y, float[] out) {
+		float gx = Math.min(Math.max(x / cellSize, 0), cols - 1.001f);
+		float gy = Math.min(Math.max(y / cellSize, 0), rows - 1.001f);
+		int c = (int) gx;
+		int r = (int) gy;
+		float tx = gx - c;
+		float ty = gy - r;
+		int i = r * cols + c;
+		int j = i + cols;
+		float topX = dirX[i] + (dirX[i + 1] - dirX[i]) * tx;
+		float topY = dirY[i] + (dirY[i + 1] - dirY[i]) * tx;
+		float bottomX = dirX[j] + (dirX[j + 1] - dirX[j]) * tx;
+		float bottomY = dirY[j] + (dirY[j + 1] - dirY[j]) * tx;
+		out[0] = topX + (bottomX - topX) * ty;
+		out[1] = topY + (bottomY - topY) * ty;
+	}
+
+	/**
+	 * Set how quickly noise changes from one cell to the next. Takes effect
+	 * as rows are regenerated.
+	 * 
+	 * @param s
+	 *            Noise coordinates per cell
+	 */
+	public void setNoiseScale(float s) {
+		noiseScale = s;
+	}
+
+	/**
+	 * Set how far the noise moves each time the whole field has been
+	 * regenerated.
+	 * 
+	 * @param d
+	 *            Noise coordinates per regeneration
+	 */
+	public void setDrift(float d) {
+		drift = d;
+	}
+
+	/**
+	 * Start or stop regenerating the field from noise.
+	 * 
+	 * @param a
+	 *            Whether or not regenerate() changes the field
+	 */
+	public void setAnimated(boolean a) {
+		animated = a;
+	}
+
+	/**
+	 * 
+	 * @return Whether or not regenerate() changes the field
+	 */
+	public boolean isAnimated() {
+		return animated;
+	}
+
+	/**
+	 * 
+	 * @return Size of each cell in pixels
+	 */
+	public float getCellSize() {
+		return cellSize;
+	}
+
+	/**
+	 * 
+	 * @return Number of rows in the grid
+	 */
+	public int getRows() {
+		return rows;
+	}
+
+	/**
+	 * 
+	 * @return Number of columns in the grid
+	 */
+	public int getCols() {
+		return cols;
+	}
+}
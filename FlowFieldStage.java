@@ -0,0 +1,80 @@
+package art2;
+
+import processing.core.PVector;
+
+/**
+ * Pushes each MovingThing along a FlowField, regenerating a few rows of the
+ * field at the start of each update. Used in place of a NoiseStage, it
+ * replaces a noise call per MovingThing with a lookup into the grid.
+ */
+public class FlowFieldStage extends ForceStage {
+	private FlowField field;
+	private float strength;
+	private int rowsPerUpdate;
+
+	// Reused for every sample
+	private final float[] dir = new float[2];
+	private final PVector force = new PVector();
+
+	/**
+	 * Create a new FlowFieldStage.
+	 * 
+	 * @param field
+	 *            Field to push MovingThings along
+	 * @param strength
+	 *            Size of the force
+	 * @param rowsPerUpdate
+	 *            Number of rows of the field to regenerate each update
+	 */
+	public FlowFieldStage(FlowField field, float strength, int rowsPerUpdate) {
+		super("flow field");
+		this.field = field;
+		this.strength = strength;
+		this.rowsPerUpdate = rowsPerUpdate;
+	}
+
+	public void prepare(Flock f) {
+		field.regenerate(rowsPerUpdate);
+	}
+
+	public void apply(Flock f, MovingThing m, int i) {
+		PVector pos = m.getPos();
+		field.sample(pos.x, pos.y, dir);
+		force.set(dir[0] * strength, dir[1] * strength);
+		m.applyForce(force);
+	}
+
+	/**
+	 * 
+	 * @return Field MovingThings are pushed along
+	 */
+	public FlowField getField() {
+		return field;
+	}
+
+	/**
+	 * 
+	 * @param s
+	 *            Size of the force
+	 */
+	public void setStrength(float s) {
+		strength = s;
+	}
+
+	/**
+	 * 
+	 * @return Size of the force
+	 */
+	public float getStrength() {
+		return strength;
+	}
+
+	/**
+	 * 
+	 * @param n
+	 *            Number of rows of the field to regenerate each update
+	 */
+	public void setRowsPerUpdate(int n) {
+		rowsPerUpdate = n;
+	}
+}
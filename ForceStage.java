@@ -0,0 +1,104 @@
+package art2;
+
+/**
+ * One force in a Flock's force pipeline. Every update, each stage adds its
+ * force to every living MovingThing in the Flock, in the order the stages
+ * appear in the pipeline, before the MovingThings move.
+ * 
+ * Stages which only need to look at one MovingThing at a time are fusable:
+ * the Flock runs all of them in a single pass over its MovingThings, moving
+ * each MovingThing as soon as every stage has acted on it. A stage which
+ * needs to see every MovingThing before any of them move must say it is not
+ * fusable, or take its own copy of positions in prepare().
+ */
+public abstract class ForceStage {
+	private final String name;
+
+	// Time spent in this stage in the last timed update, in nanoseconds
+	private long nanos;
+
+	/**
+	 * Create a new ForceStage.
+	 * 
+	 * @param name
+	 *            Name of the stage, for timing reports
+	 */
+	protected ForceStage(String name) {
+		this.name = name;
+		nanos = 0;
+	}
+
+	/**
+	 * Called once per update before any MovingThing is acted on.
+	 * 
+	 * @param f
+	 *            Flock being updated
+	 */
+	public void prepare(Flock f) {
+	}
+
+	/**
+	 * Apply this stage's force to one MovingThing.
+	 * 
+	 * @param f
+	 *            Flock being updated
+	 * @param m
+	 *            MovingThing to act on
+	 * @param i
+	 *            Index of the MovingThing in the Flock
+	 */
+	public abstract void apply(Flock f, MovingThing m, int i);
+
+	/**
+	 * Check whether a sleeping MovingThing, which would otherwise be skipped
+	 * this update, should wake because this stage's force reaches it. A
+	 * woken MovingThing goes through the whole pipeline this update.
+	 * 
+	 * @param f
+	 *            Flock being updated
+	 * @param m
+	 *            Sleeping MovingThing
+	 * @param i
+	 *            Index of the MovingThing in the Flock
+	 * @return Whether or not the MovingThing should wake
+	 */
+	public boolean wakes(Flock f, MovingThing m, int i) {
+		return false;
+	}
+
+	/**
+	 * 
+	 * @return Whether or not this stage can share a single pass over the
+	 *         MovingThings with other stages
+	 */
+	public boolean isFusable() {
+		return true;
+	}
+
+	/**
+	 * 
+	 * @return Name of the stage
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * 
+	 * @return Time spent in this stage in the last timed update, in
+	 *         milliseconds
+	 */
+	public float getMillis() {
+		return nanos / 1e6f;
+	}
+
+	/**
+	 * Record how long this stage took.
+	 * 
+	 * @param n
+	 *            Time in nanoseconds
+	 */
+	void setNanos(long n) {
+		nanos = n;
+	}
+}
@@ -0,0 +1,18 @@
+package art2;
+
+/**
+ * Pushes each MovingThing sideways by a Perlin-noise distributed amount, as
+ * MovingThing.oscillate() does.
+ */
+public class NoiseStage extends ForceStage {
+	/**
+	 * Create a new NoiseStage.
+	 */
+	public NoiseStage() {
+		super("noise");
+	}
+
+	public void apply(Flock f, MovingThing m, int i) {
+		m.oscillate(f.oscillation(m.getNoiseIndex() >= 0 ? m.getNoiseIndex() : i));
+	}
+}
@@ -0,0 +1,805 @@
+package art2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * Storage for the MovingThings of a large Flock outside the Java heap. Each
+ * particle is a fixed-size record of floats and ints in one direct
+ * ByteBuffer, so a Flock of millions of particles adds almost nothing to the
+ * heap for the garbage collector to trace, and the whole buffer can be handed
+ * to other code without copying.
+ * 
+ * Every record is stride() 4-byte words long and laid out as:
+ * 
+ * <pre>
+ * 0  x           float  position
+ * 1  y           float
+ * 2  vx          float  velocity
+ * 3  vy          float
+ * 4  ax          float  acceleration
+ * 5  ay          float
+ * 6  lengthFrac  float  place in the Flock's SpringRange
+ * 7  constFrac   float
+ * 8  age         int    number of updates lived through
+ * 9  lifetime    int    0 to live forever
+ * 10 fadeOut     int
+ * 11 flags       int    ALIVE, CONNECTED, attractor index from ATTRACTOR_SHIFT
+ * 12 head        int    next history slot to write
+ * 13 history     float  historyLength (x, y) pairs, oldest at head
+ * </pre>
+ * 
+ * The physics is the same as MovingThing's, written out over the records.
+ * 
+ * A buffer can be saved to a layout file and loaded again later. The file is
+ * a header of HEADER_SIZE bytes and the positions of any attractors, followed
+ * by the records exactly as they are in memory, so loading maps the file
+ * straight into the buffer rather than reading it particle by particle.
+ */
+public class ParticleBuffer {
+	// Word offsets within a record
+	public static final int X = 0;
+	public static final int Y = 1;
+	public static final int VX = 2;
+	public static final int VY = 3;
+	public static final int AX = 4;
+	public static final int AY = 5;
+	public static final int LENGTH_FRAC = 6;
+	public static final int CONSTANT_FRAC = 7;
+	public static final int AGE = 8;
+	public static final int LIFETIME = 9;
+	public static final int FADE_OUT = 10;
+	public static final int FLAGS = 11;
+	public static final int HEAD = 12;
+	public static final int HISTORY = 13;
+
+	// Bits of the flags word. The bits from ATTRACTOR_SHIFT up hold the index
+	// of the attractor a connected particle is pulled towards, 0 for the
+	// focus.
+	public static final int ALIVE = 1;
+	public static final int CONNECTED = 2;
+	public static final int ATTRACTOR_SHIFT = 8;
+
+	// Layout file header: magic "FLKL", version, a 1 written in the byte
+	// order of the records, stride, history length, number of particles and
+	// number of attractors, padded to HEADER_SIZE bytes. An (x, y) pair for
+	// each attractor follows, keeping the records 8-byte aligned. Version 1
+	// files have no attractors.
+	private static final int MAGIC = 0x464c4b4c;
+	private static final int VERSION = 2;
+	public static final int HEADER_SIZE = 32;
+
+	private final ByteBuffer bytes;
+	// Two views of the same memory, for the float and int words
+	private final FloatBuffer f;
+	private final IntBuffer n;
+
+	private final int capacity;
+	private final int historyLength;
+	private final int stride;
+	private int count;
+
+	// Attractor positions read from a layout file, as (x, y) pairs, or null
+	// if the file had none saved
+	private float[] layoutAttractors;
+
+	/**
+	 * Allocate a new ParticleBuffer.
+	 * 
+	 * @param capacity
+	 *            Maximum number of particles
+	 * @param historyLength
+	 *            Number of previous positions kept per particle
+	 */
+	public ParticleBuffer(int capacity, int historyLength) {
+		this(ByteBuffer.allocateDirect(bufferSize(capacity, historyLength)), capacity, historyLength, 0);
+	}
+
+	/**
+	 * Wrap existing memory as a ParticleBuffer.
+	 * 
+	 * @param bytes
+	 *            Memory holding capacity records
+	 * @param capacity
+	 *            Maximum number of particles
+	 * @param historyLength
+	 *            Number of previous positions kept per particle
+	 * @param count
+	 *            Number of records already filled in
+	 */
+	private ParticleBuffer(ByteBuffer bytes, int capacity, int historyLength, int count) {
+		this.capacity = capacity;
+		this.historyLength = historyLength;
+		stride = HISTORY + 2 * historyLength;
+		this.bytes = bytes.order(ByteOrder.nativeOrder());
+		f = this.bytes.asFloatBuffer();
+		n = this.bytes.asIntBuffer();
+		this.count = count;
+	}
+
+	/**
+	 * 
+	 * @param capacity
+	 *            Maximum number of particles
+	 * @param historyLength
+	 *            Number of previous positions kept per particle
+	 * @return Size in bytes of the memory needed
+	 */
+	private static int bufferSize(int capacity, int historyLength) {
+		long size = (long) capacity * (HISTORY + 2 * historyLength) * 4;
+		if (size > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("ParticleBuffer of " + size + " bytes is too large for one buffer");
+		}
+		return (int) size;
+	}
+
+	/**
+	 * Write every particle to a layout file, with no attractors.
+	 * 
+	 * @param file
+	 *            File to write, replacing any existing one
+	 * @throws IOException
+	 *             If writing fails
+	 */
+	public void save(File file) throws IOException {
+		save(file, new float[0]);
+	}
+
+	/**
+	 * Write every particle to a layout file, along with the positions of the
+	 * attractors the particles' attractor indices refer to.
+	 * 
+	 * @param file
+	 *            File to write, replacing any existing one
+	 * @param attractors
+	 *            (x, y) pairs of attractors 1 and up, not counting the focus
+	 * @throws IOException
+	 *             If writing fails
+	 */
+	public void save(File file, float[] attractors) throws IOException {
+		int numAttractors = attractors.length / 2;
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(0);
+			FileChannel channel = raf.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + 8 * numAttractors).order(ByteOrder.nativeOrder());
+			header.putInt(MAGIC).putInt(VERSION).putInt(1).putInt(stride).putInt(historyLength).putInt(count)
+					.putInt(numAttractors);
+			header.position(HEADER_SIZE);
+			for (int a = 0; a < 2 * numAttractors; a++) {
+				header.putFloat(attractors[a]);
+			}
+			header.clear();
+			while (header.hasRemaining()) {
+				channel.write(header);
+			}
+			ByteBuffer records = bytes.duplicate();
+			records.position(0).limit(count * stride * 4);
+			while (records.hasRemaining()) {
+				channel.write(records);
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Load a layout file written by save(). The positions of the attractors
+	 * saved with it are kept for getLayoutAttractors(). If no room is asked for beyond
+	 * the particles in the file and the file is writable, the file is mapped
+	 * privately into memory: pages are read in as they are first touched and
+	 * changes are never written back. Otherwise the records are copied into
+	 * new memory in one block.
+	 * 
+	 * @param file
+	 *            File to load
+	 * @param capacity
+	 *            Maximum number of particles, at least the number in the file
+	 * @return Buffer holding the particles from the file
+	 * @throws IOException
+	 *             If the file cannot be read or isn't a layout file written
+	 *             on a machine with the same byte order
+	 */
+	public static ParticleBuffer load(File file, int capacity) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.nativeOrder());
+			while (header.hasRemaining()) {
+				if (channel.read(header) < 0) {
+					throw new IOException(file + " is too short to be a layout file");
+				}
+			}
+			header.flip();
+			// The magic number reads backwards in the wrong byte order, so
+			// check for that before anything else
+			int magic = header.getInt();
+			if (magic == Integer.reverseBytes(MAGIC)) {
+				throw new IOException(file + " was written with a different byte order");
+			}
+			int version = header.getInt();
+			if (magic != MAGIC || version < 1 || version > VERSION) {
+				throw new IOException(file + " is not a version 1 to " + VERSION + " layout file");
+			}
+			if (header.getInt() != 1) {
+				throw new IOException(file + " is corrupt");
+			}
+			int stride = header.getInt();
+			int historyLength = header.getInt();
+			int count = header.getInt();
+			int numAttractors = version > 1 ? header.getInt() : 0;
+			long offset = HEADER_SIZE + 8L * numAttractors;
+			if (stride != HISTORY + 2 * historyLength || count < 0 || numAttractors < 0
+					|| channel.size() < offset + (long) count * stride * 4) {
+				throw new IOException(file + " is corrupt");
+			}
+			ByteBuffer pairs = ByteBuffer.allocate(8 * numAttractors).order(ByteOrder.nativeOrder());
+			while (pairs.hasRemaining()) {
+				if (channel.read(pairs, HEADER_SIZE + pairs.position()) < 0) {
+					throw new IOException(file + " is corrupt");
+				}
+			}
+			pairs.flip();
+			float[] attractors = version > 1 ? new float[2 * numAttractors] : null;
+			if (attractors != null) {
+				pairs.asFloatBuffer().get(attractors);
+			}
+			capacity = Math.max(capacity, count);
+			int size = bufferSize(capacity, historyLength);
+			ByteBuffer bytes = capacity == count ? mapPrivate(file, offset, size) : null;
+			if (bytes == null) {
+				bytes = ByteBuffer.allocateDirect(size);
+				ByteBuffer records = bytes.duplicate();
+				records.limit(count * stride * 4);
+				long position = offset;
+				while (records.hasRemaining()) {
+					int read = channel.read(records, position);
+					if (read < 0) {
+						throw new IOException(file + " is corrupt");
+					}
+					position += read;
+				}
+			}
+			ParticleBuffer b = new ParticleBuffer(bytes, capacity, historyLength, count);
+			b.layoutAttractors = attractors;
+			return b;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Map the records of a layout file privately into memory. A private
+	 * mapping needs a channel opened for writing, even though nothing is
+	 * written to the file.
+	 * 
+	 * @param file
+	 *            Layout file
+	 * @param offset
+	 *            Position of the records in the file
+	 * @param size
+	 *            Size of the records in bytes
+	 * @return The mapping, or null if the file cannot be opened for writing
+	 */
+	private static ByteBuffer mapPrivate(File file, long offset, int size) {
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				// A mapping stays valid after its channel is closed
+				return raf.getChannel().map(FileChannel.MapMode.PRIVATE, offset, size);
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Add a particle at rest at (x,y).
+	 * 
+	 * @param x
+	 *            X-coordinate
+	 * @param y
+	 *            Y-coordinate
+	 * @param lengthFrac
+	 *            Place in the range of spring lengths
+	 * @param constantFrac
+	 *            Place in the range of spring constants
+	 * @param connected
+	 *            Whether or not the particle is pulled towards the focus
+	 * @return Index of the new particle
+	 */
+	public int add(float x, float y, float lengthFrac, float constantFrac, boolean connected) {
+		if (count == capacity) {
+			throw new IllegalStateException("ParticleBuffer is full: " + capacity);
+		}
+		int i = count++;
+		int b = i * stride;
+		f.put(b + LENGTH_FRAC, lengthFrac);
+		f.put(b + CONSTANT_FRAC, constantFrac);
+		n.put(b + LIFETIME, 0);
+		n.put(b + FADE_OUT, 0);
+		n.put(b + FLAGS, connected ? ALIVE | CONNECTED : ALIVE);
+		respawn(i, x, y);
+		return i;
+	}
+
+	/**
+	 * Bring the particle at index i back to life at rest at (x,y), keeping its
+	 * spring values, lifetime and connection.
+	 * 
+	 * @param i
+	 *            Index of the particle
+	 * @param x
+	 *            X-coordinate
+	 * @param y
+	 *            Y-coordinate
+	 */
+	public void respawn(int i, float x, float y) {
+		int b = i * stride;
+		f.put(b + X, x);
+		f.put(b + Y, y);
+		f.put(b + VX, 0);
+		f.put(b + VY, 0);
+		f.put(b + AX, 0);
+		f.put(b + AY, 0);
+		n.put(b + AGE, 0);
+		n.put(b + HEAD, 0);
+		n.put(b + FLAGS, n.get(b + FLAGS) | ALIVE);
+		for (int h = 0; h < historyLength; h++) {
+			f.put(b + HISTORY + 2 * h, x);
+			f.put(b + HISTORY + 2 * h + 1, y);
+		}
+	}
+
+	/**
+	 * Remove the last particle.
+	 */
+	public void removeLast() {
+		if (count > 0) {
+			count--;
+		}
+	}
+
+	/**
+	 * Remove the particle at index i by moving the last particle into its
+	 * place. Changes the index of the last particle.
+	 * 
+	 * @param i
+	 *            Index of the particle to remove
+	 */
+	public void remove(int i) {
+		int last = --count;
+		if (i < last) {
+			int b = i * stride;
+			int l = last * stride;
+			for (int k = 0; k < stride; k++) {
+				n.put(b + k, n.get(l + k));
+			}
+		}
+	}
+
+	/**
+	 * Copy the state of the particle at index i into a MovingThing, the
+	 * reverse of add(MovingThing). Its history and connections are left
+	 * alone.
+	 * 
+	 * @param i
+	 *            Index of the particle
+	 * @param m
+	 *            MovingThing to copy into
+	 */
+	public void copyTo(int i, MovingThing m) {
+		int b = i * stride;
+		m.getPos().set(f.get(b + X), f.get(b + Y));
+		m.getVelocity().set(f.get(b + VX), f.get(b + VY));
+		m.getAcceleration().set(f.get(b + AX), f.get(b + AY));
+		m.setSpringLengthFrac(f.get(b + LENGTH_FRAC));
+		m.setSpringConstantFrac(f.get(b + CONSTANT_FRAC));
+		m.setLifetime(n.get(b + LIFETIME), n.get(b + FADE_OUT));
+		m.setAge(n.get(b + AGE));
+	}
+
+	/**
+	 * Copy the state of a MovingThing into a new particle.
+	 * 
+	 * @param m
+	 *            MovingThing to copy
+	 * @return Index of the new particle
+	 */
+	public int add(MovingThing m) {
+		int i = add(m.getPos().x, m.getPos().y, Math.max(m.getSpringLengthFrac(), 0),
+				Math.max(m.getSpringConstantFrac(), 0), m.getNumConnections() > 0);
+		int b = i * stride;
+		f.put(b + VX, m.getVelocity().x);
+		f.put(b + VY, m.getVelocity().y);
+		f.put(b + AX, m.getAcceleration().x);
+		f.put(b + AY, m.getAcceleration().y);
+		setLifetime(i, m.getLifetime(), m.getFadeOut());
+		n.put(b + AGE, m.getAge());
+		if (!m.isAlive()) {
+			n.put(b + FLAGS, n.get(b + FLAGS) & ~ALIVE);
+		}
+		return i;
+	}
+
+	/**
+	 * Set the lifetime of the particle at index i.
+	 * 
+	 * @param i
+	 *            Index of the particle
+	 * @param lifetime
+	 *            Number of updates to live for, or 0 to live forever
+	 * @param fadeOut
+	 *            Number of updates at the end of its life spent fading out
+	 */
+	public void setLifetime(int i, int lifetime, int fadeOut) {
+		n.put(i * stride + LIFETIME, lifetime);
+		n.put(i * stride + FADE_OUT, fadeOut);
+	}
+
+	/**
+	 * Update every living particle one step, in the order of a Flock's
+	 * default force pipeline: an oscillating force perpendicular to its
+	 * velocity, air resistance, then the spring towards its attractor, added
+	 * to any acceleration already stored by repel(). The particle then moves
+	 * as MovingThing.integrate() does.
+	 * 
+	 * @param oscillation
+	 *            Source of the oscillation coefficient for each particle
+	 * @param attractorX
+	 *            X-coordinate of each attractor, the focus first
+	 * @param attractorY
+	 *            Y-coordinate of each attractor, the focus first
+	 * @param numAttractors
+	 *            Number of attractors, counting the focus. Particles with
+	 *            an attractor index past the end are pulled to the focus.
+	 * @param springs
+	 *            Range of spring values
+	 * @param mass
+	 *            Mass of each particle
+	 * @param area
+	 *            Area of each particle, for air resistance
+	 * @param maxSpeed
+	 *            Hard upper limit on speed
+	 * @param dead
+	 *            Told the index of each particle which dies this update
+	 */
+	void step(Oscillation oscillation, float[] attractorX, float[] attractorY, int numAttractors,
+			SpringRange springs, float mass, float area, float maxSpeed, Deaths dead) {
+		float dragCoef = -.5f * MovingThing.drag * MovingThing.rho * area;
+		for (int i = 0; i < count; i++) {
+			int b = i * stride;
+			int flags = n.get(b + FLAGS);
+			if ((flags & ALIVE) == 0) {
+				continue;
+			}
+			float x = f.get(b + X);
+			float y = f.get(b + Y);
+			float vx = f.get(b + VX);
+			float vy = f.get(b + VY);
+			float ax = f.get(b + AX);
+			float ay = f.get(b + AY);
+
+			// Oscillation
+			float c = oscillation.at(i) / mass;
+			ax += -vy * c;
+			ay += vx * c;
+
+			// Air resistance
+			float speed = (float) Math.sqrt(vx * vx + vy * vy);
+			if (speed > 0) {
+				float drag = dragCoef * speed / mass;
+				ax += vx * drag;
+				ay += vy * drag;
+			}
+
+			// Spring
+			if ((flags & CONNECTED) != 0) {
+				int a = flags >>> ATTRACTOR_SHIFT;
+				if (a >= numAttractors) {
+					a = 0;
+				}
+				float dx = x - attractorX[a];
+				float dy = y - attractorY[a];
+				float d = (float) Math.sqrt(dx * dx + dy * dy);
+				if (d > 0) {
+					float length = springs.length(f.get(b + LENGTH_FRAC));
+					float k = springs.constant(f.get(b + CONSTANT_FRAC));
+					float s = (d - length) * -k / (d * mass);
+					ax += dx * s;
+					ay += dy * s;
+				}
+			}
+
+			// Age
+			int age = n.get(b + AGE) + 1;
+			n.put(b + AGE, age);
+			int lifetime = n.get(b + LIFETIME);
+			boolean dies = lifetime > 0 && age >= lifetime;
+
+			// Integrate
+			vx += ax;
+			vy += ay;
+			speed = (float) Math.sqrt(vx * vx + vy * vy);
+			if (speed > maxSpeed) {
+				vx *= maxSpeed / speed;
+				vy *= maxSpeed / speed;
+			}
+			int head = n.get(b + HEAD);
+			f.put(b + HISTORY + 2 * head, x);
+			f.put(b + HISTORY + 2 * head + 1, y);
+			n.put(b + HEAD, head + 1 == historyLength ? 0 : head + 1);
+			x += vx;
+			y += vy;
+
+			f.put(b + X, x);
+			f.put(b + Y, y);
+			f.put(b + VX, vx);
+			f.put(b + VY, vy);
+			f.put(b + AX, 0);
+			f.put(b + AY, 0);
+			if (dies) {
+				n.put(b + FLAGS, flags & ~ALIVE);
+				dead.died(i);
+			}
+		}
+	}
+
+	/**
+	 * Apply magnetic repulsion from (x,y) to every particle, as
+	 * Flock.runAwayFrom() does.
+	 * 
+	 * @param x
+	 *            X-coordinate of the magnetic force
+	 * @param y
+	 *            Y-coordinate of the magnetic force
+	 * @param mForce
+	 *            Magnetic coefficient of the force
+	 * @param mass
+	 *            Mass of each particle
+	 */
+	void repel(float x, float y, float mForce, float mass) {
+		for (int i = 0; i < count; i++) {
+			int b = i * stride;
+			float dx = f.get(b + X) - x;
+			float dy = f.get(b + Y) - y;
+			float dMag = (float) Math.sqrt(dx * dx + dy * dy) / 10;
+			if (dMag < mForce * 2) {
+				float s = mForce / (dMag * dMag * dMag * mass);
+				f.put(b + AX, f.get(b + AX) + dx * s);
+				f.put(b + AY, f.get(b + AY) + dy * s);
+			}
+		}
+	}
+
+	/**
+	 * Copy every particle into a snapshot.
+	 * 
+	 * @param s
+	 *            Snapshot to fill in
+	 */
+	void capture(FlockSnapshot s) {
+		s.ensureCapacity(count);
+		for (int i = 0; i < count; i++) {
+			int b = i * stride;
+			s.set(i, f.get(b + X), f.get(b + Y), f.get(b + VX), f.get(b + VY),
+					(n.get(b + FLAGS) & ALIVE) != 0 && n.get(b + AGE) >= 5 ? fade(b) : 0);
+		}
+		s.setCount(count);
+	}
+
+	/**
+	 * Work out how faded out a particle is, as MovingThing.getFade() does.
+	 * 
+	 * @param b
+	 *            Word offset of the particle's record
+	 * @return Fade between 0 and 1
+	 */
+	private float fade(int b) {
+		int lifetime = n.get(b + LIFETIME);
+		int fadeOut = n.get(b + FADE_OUT);
+		if (lifetime <= 0 || fadeOut <= 0) {
+			return 1;
+		}
+		int remaining = lifetime - n.get(b + AGE);
+		if (remaining >= fadeOut) {
+			return 1;
+		}
+		return remaining <= 0 ? 0 : (float) remaining / fadeOut;
+	}
+
+	/**
+	 * 
+	 * @param i
+	 *            Index of a particle
+	 * @return Whether or not the particle is alive
+	 */
+	public boolean isAlive(int i) {
+		return (n.get(i * stride + FLAGS) & ALIVE) != 0;
+	}
+
+	/**
+	 * 
+	 * @param i
+	 *            Index of a particle
+	 * @return Whether or not the particle is pulled towards the focus
+	 */
+	public boolean isConnected(int i) {
+		return (n.get(i * stride + FLAGS) & CONNECTED) != 0;
+	}
+
+	/**
+	 * 
+	 * @param i
+	 *            Index of a particle
+	 * @return Index of the attractor the particle is pulled towards, 0 for
+	 *         the focus
+	 */
+	public int getAttractor(int i) {
+		return n.get(i * stride + FLAGS) >>> ATTRACTOR_SHIFT;
+	}
+
+	/**
+	 * Connect a particle to the focus, or disconnect it. Either way it
+	 * forgets any attractor it was pulled towards.
+	 * 
+	 * @param i
+	 *            Index of a particle
+	 * @param connected
+	 *            Whether or not the particle is pulled towards the focus
+	 */
+	public void setConnected(int i, boolean connected) {
+		int b = i * stride + FLAGS;
+		int flags = n.get(b) & ALIVE;
+		n.put(b, connected ? flags | CONNECTED : flags);
+	}
+
+	/**
+	 * Choose which attractor a particle is pulled towards, if it is
+	 * connected.
+	 * 
+	 * @param i
+	 *            Index of a particle
+	 * @param a
+	 *            Index of the attractor, 0 for the focus
+	 */
+	public void setAttractor(int i, int a) {
+		int b = i * stride + FLAGS;
+		n.put(b, (n.get(b) & ((1 << ATTRACTOR_SHIFT) - 1)) | (a << ATTRACTOR_SHIFT));
+	}
+
+	/**
+	 * Forget an attractor. Particles pulled towards it are pulled towards the
+	 * focus instead, and those pulled towards later attractors have their
+	 * index moved down to match.
+	 * 
+	 * @param a
+	 *            Index of the attractor removed, from 1
+	 */
+	public void removeAttractor(int a) {
+		for (int i = 0; i < count; i++) {
+			int attractor = getAttractor(i);
+			if (attractor == a) {
+				setAttractor(i, 0);
+			} else if (attractor > a) {
+				setAttractor(i, attractor - 1);
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * @param i
+	 *            Index of a particle
+	 * @return X-coordinate of the particle
+	 */
+	public float getX(int i) {
+		return f.get(i * stride + X);
+	}
+
+	/**
+	 * 
+	 * @param i
+	 *            Index of a particle
+	 * @return Y-coordinate of the particle
+	 */
+	public float getY(int i) {
+		return f.get(i * stride + Y);
+	}
+
+	/**
+	 * Set the place of a particle in the range of spring lengths.
+	 * 
+	 * @param i
+	 *            Index of a particle
+	 * @param frac
+	 *            Fraction of the way through the range of lengths
+	 */
+	public void setLengthFrac(int i, float frac) {
+		f.put(i * stride + LENGTH_FRAC, frac);
+	}
+
+	/**
+	 * Get the memory holding every particle, for handing to other code
+	 * without copying. The buffer is read-only, in native byte order, and
+	 * holds size() records of stride() 4-byte words each.
+	 * 
+	 * @return Read-only view of the particle records
+	 */
+	public ByteBuffer asReadOnlyBuffer() {
+		return bytes.asReadOnlyBuffer().order(ByteOrder.nativeOrder());
+	}
+
+	/**
+	 * 
+	 * @return Number of particles
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * 
+	 * @return Whether or not no more particles can be added
+	 */
+	public boolean isFull() {
+		return count == capacity;
+	}
+
+	/**
+	 * 
+	 * @return Maximum number of particles
+	 */
+	public int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * 
+	 * @return Number of 4-byte words in each particle's record
+	 */
+	public int stride() {
+		return stride;
+	}
+
+	/**
+	 * 
+	 * @return Number of previous positions kept per particle
+	 */
+	public int getHistoryLength() {
+		return historyLength;
+	}
+
+	/**
+	 * 
+	 * @return (x, y) pairs of the attractors saved with the layout file this
+	 *         buffer was loaded from, or null if it wasn't loaded from one or
+	 *         the file is from before attractors were saved
+	 */
+	public float[] getLayoutAttractors() {
+		return layoutAttractors == null ? null : layoutAttractors.clone();
+	}
+
+	/**
+	 * The oscillation coefficient for each particle in an update.
+	 */
+	interface Oscillation {
+		float at(int i);
+	}
+
+	/**
+	 * Told about each particle which dies during an update.
+	 */
+	interface Deaths {
+		void died(int i);
+	}
+}
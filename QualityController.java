@@ -0,0 +1,364 @@
+package art2;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Watches how long a Flock takes to update and draw each frame and lowers its
+ * quality in steps when frames run over a target time, raising it again once
+ * there is time to spare. Each level keeps the reductions of the levels below
+ * it:
+ * 
+ * <ol>
+ * <li>Draw as DOTs instead of ELLIPSEs or TAILs</li>
+ * <li>Draw TAILs through half as many previous positions</li>
+ * <li>Don't draw slow MovingThings</li>
+ * <li>Share one oscillation noise value between every 4 MovingThings</li>
+ * <li>Draw every other MovingThing</li>
+ * <li>Draw every fourth MovingThing</li>
+ * </ol>
+ * 
+ * Every level only changes settings which are read as the Flock updates or
+ * draws, so none of them allocate, and they hold whether the Flock is stored
+ * as objects or off the heap and whether it is drawn directly or from
+ * snapshots. Undoing a level puts back the setting it replaced, unless the
+ * setting has been changed by something else since.
+ * 
+ * Every change of level is recorded in a log and passed to any Listeners.
+ */
+public class QualityController {
+	public static final int MAX_LEVEL = 6;
+
+	private static final String[] LEVEL_NAMES = { "full quality", "dots", "short trails", "hide slow",
+			"shared noise", "draw 1/2", "draw 1/4" };
+
+	// Frame time to hold, in nanoseconds
+	private long target;
+
+	// Smoothed frame time, in nanoseconds
+	private float average;
+
+	// Current level, and the number of frames in a row over or well under
+	// the target
+	private int level;
+	private int overFrames;
+	private int underFrames;
+	// Frames to wait after a change before judging its effect
+	private int cooldown;
+
+	// Number of frames to wait before lowering or raising quality
+	private int patienceDown = 10;
+	private int patienceUp = 120;
+	// Fraction of the target a frame must be under to count as spare time
+	private float headroom = .7f;
+
+	// For each level, the setting it replaced and the value it set in its
+	// place
+	private final float[] saved;
+	private final float[] applied;
+
+	private final List<String> log;
+	private static final int MAX_LOG = 100;
+	private final List<Listener> listeners;
+
+	/**
+	 * Told about every change of quality level.
+	 */
+	public interface Listener {
+		/**
+		 * Called after the quality level changes.
+		 * 
+		 * @param from
+		 *            Old level
+		 * @param to
+		 *            New level
+		 * @param frameMillis
+		 *            Smoothed frame time which caused the change
+		 */
+		void qualityChanged(int from, int to, float frameMillis);
+	}
+
+	/**
+	 * Create a new QualityController.
+	 * 
+	 * @param targetMillis
+	 *            Frame time to hold, in milliseconds
+	 */
+	public QualityController(float targetMillis) {
+		setTarget(targetMillis);
+		average = 0;
+		level = 0;
+		saved = new float[MAX_LEVEL + 1];
+		applied = new float[MAX_LEVEL + 1];
+		log = new ArrayList<String>();
+		listeners = new ArrayList<Listener>();
+	}
+
+	/**
+	 * Look at the last frame of a Flock and change its quality if needed.
+	 * Called by the Flock at the end of every frame.
+	 * 
+	 * @param f
+	 *            Flock to control
+	 * @param frameNanos
+	 *            Time spent updating and drawing the Flock this frame
+	 */
+	void frame(Flock f, long frameNanos) {
+		average = average == 0 ? frameNanos : .9f * average + .1f * frameNanos;
+		if (cooldown > 0) {
+			cooldown--;
+			return;
+		}
+		if (average > target) {
+			overFrames++;
+			underFrames = 0;
+		} else if (average < headroom * target) {
+			underFrames++;
+			overFrames = 0;
+		} else {
+			overFrames = 0;
+			underFrames = 0;
+		}
+		if (overFrames >= patienceDown && level < MAX_LEVEL) {
+			setLevel(f, level + 1);
+		} else if (underFrames >= patienceUp && level > 0) {
+			setLevel(f, level - 1);
+		}
+	}
+
+	/**
+	 * Move a Flock to a quality level, undoing or applying reductions one
+	 * level at a time.
+	 * 
+	 * @param f
+	 *            Flock to change
+	 * @param to
+	 *            New level, between 0 and MAX_LEVEL
+	 */
+	public void setLevel(Flock f, int to) {
+		to = Math.max(0, Math.min(MAX_LEVEL, to));
+		int from = level;
+		while (level < to) {
+			level++;
+			apply(f, level, true);
+		}
+		while (level > to) {
+			apply(f, level, false);
+			level--;
+		}
+		overFrames = 0;
+		underFrames = 0;
+		cooldown = patienceDown;
+		if (from != to) {
+			float millis = average / 1e6f;
+			record(String.format("%s -> %s (%.2f ms, target %.2f ms)", LEVEL_NAMES[from], LEVEL_NAMES[to], millis,
+					target / 1e6f));
+			for (int i = 0; i < listeners.size(); i++) {
+				listeners.get(i).qualityChanged(from, to, millis);
+			}
+		}
+	}
+
+	/**
+	 * Apply or undo the reduction of a single level. Undoing leaves the
+	 * setting alone if it no longer has the value the level gave it.
+	 * 
+	 * @param f
+	 *            Flock to change
+	 * @param l
+	 *            Level whose reduction to change
+	 * @param on
+	 *            Whether to apply the reduction or undo it
+	 */
+	private void apply(Flock f, int l, boolean on) {
+		if (on) {
+			saved[l] = setting(f, l);
+			applied[l] = reduced(f, l, saved[l]);
+			set(f, l, applied[l]);
+		} else if (setting(f, l) == applied[l]) {
+			set(f, l, saved[l]);
+		}
+	}
+
+	/**
+	 * 
+	 * @param f
+	 *            Flock to look at
+	 * @param l
+	 *            Level
+	 * @return The current value of the setting the level changes
+	 */
+	private static float setting(Flock f, int l) {
+		switch (l) {
+		case 1:
+			return f.getMode();
+		case 2:
+			return f.getDrawnTrailLength();
+		case 3:
+			return f.getSpeedThreshold();
+		case 4:
+			return f.getOscillationStride();
+		default:
+			return f.getDrawStride();
+		}
+	}
+
+	/**
+	 * 
+	 * @param f
+	 *            Flock to look at
+	 * @param l
+	 *            Level
+	 * @param v
+	 *            Value of the level's setting before the level
+	 * @return The value the level sets instead
+	 */
+	private static float reduced(Flock f, int l, float v) {
+		switch (l) {
+		case 1:
+			return MovingThing.DOT;
+		case 2:
+			int drawn = v > 0 ? Math.min((int) v, f.getTrailLength()) : f.getTrailLength();
+			return Math.max(drawn / 2, 2);
+		case 3:
+			// Anything slower than half a pixel per update is barely visible
+			return Math.max(v, .5f);
+		case 4:
+			return Math.max(v, 4);
+		default:
+			// Levels 5 and 6 each halve the number drawn
+			return 2 * v;
+		}
+	}
+
+	/**
+	 * Change the setting a level changes.
+	 * 
+	 * @param f
+	 *            Flock to change
+	 * @param l
+	 *            Level
+	 * @param v
+	 *            New value of the setting
+	 */
+	private static void set(Flock f, int l, float v) {
+		switch (l) {
+		case 1:
+			f.setMode((int) v);
+			break;
+		case 2:
+			f.setDrawnTrailLength((int) v);
+			break;
+		case 3:
+			f.setSpeedThreshold(v);
+			break;
+		case 4:
+			f.setOscillationStride((int) v);
+			break;
+		default:
+			f.setDrawStride((int) v);
+			break;
+		}
+	}
+
+	/**
+	 * Add an entry to the log, dropping the oldest if it is full.
+	 * 
+	 * @param entry
+	 *            Log entry
+	 */
+	private void record(String entry) {
+		if (log.size() == MAX_LOG) {
+			log.remove(0);
+		}
+		log.add(entry);
+	}
+
+	/**
+	 * Get the most recent changes of quality level, oldest first.
+	 * 
+	 * @return Copy of the log
+	 */
+	public List<String> getLog() {
+		return new ArrayList<String>(log);
+	}
+
+	/**
+	 * Start telling a Listener about changes of quality level.
+	 * 
+	 * @param l
+	 *            Listener to add
+	 */
+	public void addListener(Listener l) {
+		listeners.add(l);
+	}
+
+	/**
+	 * Stop telling a Listener about changes of quality level.
+	 * 
+	 * @param l
+	 *            Listener to remove
+	 */
+	public void removeListener(Listener l) {
+		listeners.remove(l);
+	}
+
+	/**
+	 * Set the frame time to hold.
+	 * 
+	 * @param millis
+	 *            Target frame time in milliseconds
+	 */
+	public void setTarget(float millis) {
+		target = (long) (millis * 1e6f);
+	}
+
+	/**
+	 * 
+	 * @return Target frame time in milliseconds
+	 */
+	public float getTarget() {
+		return target / 1e6f;
+	}
+
+	/**
+	 * Set how many frames in a row must be over or under the target before the
+	 * level changes.
+	 * 
+	 * @param down
+	 *            Frames over the target before lowering quality
+	 * @param up
+	 *            Frames with spare time before raising quality
+	 */
+	public void setPatience(int down, int up) {
+		patienceDown = down;
+		patienceUp = up;
+	}
+
+	/**
+	 * Set how far under the target a frame must be to count as having time to
+	 * spare.
+	 * 
+	 * @param h
+	 *            Fraction of the target frame time
+	 */
+	public void setHeadroom(float h) {
+		headroom = h;
+	}
+
+	/**
+	 * 
+	 * @return Current quality level, 0 being full quality
+	 */
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * 
+	 * @return Smoothed frame time in milliseconds
+	 */
+	public float getAverageMillis() {
+		return average / 1e6f;
+	}
+}
@@ -0,0 +1,85 @@
+package art2;
+
+import java.util.ArrayList;
+
+import processing.core.PVector;
+
+/**
+ * Pushes each MovingThing away from a set of magnetic repulsors every update,
+ * as Flock.runAwayFrom() does for a single update. Like runAwayFrom(), it
+ * wakes sleeping MovingThings it reaches.
+ */
+public class RepulsionStage extends ForceStage {
+	private ArrayList<MovingThing> repulsors;
+
+	/**
+	 * Create a new RepulsionStage with no repulsors.
+	 */
+	public RepulsionStage() {
+		super("repulsion");
+		repulsors = new ArrayList<MovingThing>();
+	}
+
+	/**
+	 * Start repelling MovingThings from a repulsor, with a strength given by
+	 * its magnetic coefficient.
+	 * 
+	 * @param m
+	 *            Repulsor to add
+	 */
+	public void addRepulsor(MovingThing m) {
+		repulsors.add(m);
+	}
+
+	/**
+	 * Stop repelling MovingThings from a repulsor.
+	 * 
+	 * @param m
+	 *            Repulsor to remove
+	 */
+	public void removeRepulsor(MovingThing m) {
+		repulsors.remove(m);
+	}
+
+	/**
+	 * 
+	 * @return The number of repulsors
+	 */
+	public int getNumRepulsors() {
+		return repulsors.size();
+	}
+
+	public boolean wakes(Flock f, MovingThing m, int i) {
+		PVector pos = m.getPos();
+		for (int r = 0; r < repulsors.size(); r++) {
+			MovingThing rep = repulsors.get(r);
+			if (rep == m) {
+				continue;
+			}
+			float dx = pos.x - rep.getPos().x;
+			float dy = pos.y - rep.getPos().y;
+			if ((float) Math.sqrt(dx * dx + dy * dy) / 10 < rep.getMagForce() * 2) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public void apply(Flock f, MovingThing m, int i) {
+		PVector pos = m.getPos();
+		for (int r = 0; r < repulsors.size(); r++) {
+			MovingThing rep = repulsors.get(r);
+			if (rep == m) {
+				continue;
+			}
+			float mForce = rep.getMagForce();
+			float dx = pos.x - rep.getPos().x;
+			float dy = pos.y - rep.getPos().y;
+			float dMag = (float) Math.sqrt(dx * dx + dy * dy) / 10;
+			if (dMag < mForce * 2) {
+				float s = mForce / (dMag * dMag * dMag);
+				m.applyForce(new PVector(dx * s, dy * s));
+			}
+		}
+	}
+}
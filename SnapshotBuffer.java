@@ -0,0 +1,87 @@
+package art2;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A triple buffer of FlockSnapshots passed from one writing thread to one
+ * reading thread. The writer always has a snapshot of its own to fill in, the
+ * reader always has a finished snapshot of its own to read, and the third sits
+ * in the middle holding the most recently finished snapshot. Neither side
+ * ever waits for the other; if the writer finishes several snapshots before
+ * the reader looks, the reader just gets the newest.
+ */
+public class SnapshotBuffer {
+	// Bit set in the middle index when it holds a snapshot the reader has not
+	// seen yet
+	private static final int FRESH = 4;
+
+	private final FlockSnapshot[] buffers;
+
+	// Index of the middle snapshot, plus the FRESH bit
+	private final AtomicInteger middle;
+	// Index of the snapshot owned by each side
+	private int back;
+	private int front;
+
+	// Copy of the snapshot the reader was on before its latest one, for
+	// blending between the two
+	private final FlockSnapshot previous;
+
+	/**
+	 * Create a new SnapshotBuffer.
+	 * 
+	 * @param capacity
+	 *            Number of MovingThings each snapshot starts with room for
+	 */
+	public SnapshotBuffer(int capacity) {
+		buffers = new FlockSnapshot[] { new FlockSnapshot(capacity), new FlockSnapshot(capacity),
+				new FlockSnapshot(capacity) };
+		back = 0;
+		middle = new AtomicInteger(1);
+		front = 2;
+		previous = new FlockSnapshot(capacity);
+	}
+
+	/**
+	 * Get the snapshot the writer should fill in next. Only the writing thread
+	 * may call this.
+	 * 
+	 * @return Snapshot to write to
+	 */
+	public FlockSnapshot getWriteBuffer() {
+		return buffers[back];
+	}
+
+	/**
+	 * Hand the snapshot from getWriteBuffer() over to the reader. Only the
+	 * writing thread may call this.
+	 */
+	public void publish() {
+		back = middle.getAndSet(back | FRESH) & ~FRESH;
+	}
+
+	/**
+	 * Get the most recently published snapshot. Only the reading thread may
+	 * call this, and the snapshot returned stays untouched until the next
+	 * call.
+	 * 
+	 * @return Latest snapshot, which is empty until something is published
+	 */
+	public FlockSnapshot getLatest() {
+		if ((middle.get() & FRESH) != 0) {
+			previous.copyFrom(buffers[front]);
+			front = middle.getAndSet(front) & ~FRESH;
+		}
+		return buffers[front];
+	}
+
+	/**
+	 * Get the snapshot which was latest before the current one. Only the
+	 * reading thread may call this.
+	 * 
+	 * @return Previous snapshot
+	 */
+	public FlockSnapshot getPrevious() {
+		return previous;
+	}
+}
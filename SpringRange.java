@@ -0,0 +1,128 @@
+package art2;
+
+/**
+ * Ranges of spring lengths and spring constants shared by a group of
+ * MovingThings. Each MovingThing only remembers where in each range it sits
+ * as a fraction between 0 and 1, so changing a range changes every spring in
+ * the group at once without touching the MovingThings themselves.
+ */
+public class SpringRange {
+	private float lengthMin;
+	private float lengthMax;
+
+	private float constantMin;
+	private float constantMax;
+
+	/**
+	 * Create a new SpringRange.
+	 * 
+	 * @param lengthMin
+	 *            Minimum spring length
+	 * @param lengthMax
+	 *            Maximum spring length
+	 * @param constantMin
+	 *            Minimum spring constant
+	 * @param constantMax
+	 *            Maximum spring constant
+	 */
+	public SpringRange(float lengthMin, float lengthMax, float constantMin, float constantMax) {
+		this.lengthMin = lengthMin;
+		this.lengthMax = lengthMax;
+		this.constantMin = constantMin;
+		this.constantMax = constantMax;
+	}
+
+	/**
+	 * Get the spring length at a point in the range of lengths.
+	 * 
+	 * @param frac
+	 *            Fraction of the way from the minimum to the maximum length
+	 * @return Spring length
+	 */
+	public float length(float frac) {
+		return frac * (lengthMax - lengthMin) + lengthMin;
+	}
+
+	/**
+	 * Get the spring constant at a point in the range of constants.
+	 * 
+	 * @param frac
+	 *            Fraction of the way from the minimum to the maximum constant
+	 * @return Spring constant
+	 */
+	public float constant(float frac) {
+		return frac * (constantMax - constantMin) + constantMin;
+	}
+
+	/**
+	 * 
+	 * @return Minimum spring length
+	 */
+	public float getLengthMin() {
+		return lengthMin;
+	}
+
+	/**
+	 * Set the minimum spring length.
+	 * 
+	 * @param d
+	 *            Minimum spring length
+	 */
+	public void setLengthMin(float d) {
+		lengthMin = d;
+	}
+
+	/**
+	 * 
+	 * @return Maximum spring length
+	 */
+	public float getLengthMax() {
+		return lengthMax;
+	}
+
+	/**
+	 * Set the maximum spring length.
+	 * 
+	 * @param d
+	 *            Maximum spring length
+	 */
+	public void setLengthMax(float d) {
+		lengthMax = d;
+	}
+
+	/**
+	 * 
+	 * @return Minimum spring constant
+	 */
+	public float getConstantMin() {
+		return constantMin;
+	}
+
+	/**
+	 * Set the minimum spring constant.
+	 * 
+	 * @param s
+	 *            Minimum spring constant
+	 */
+	public void setConstantMin(float s) {
+		constantMin = s;
+	}
+
+	/**
+	 * 
+	 * @return Maximum spring constant
+	 */
+	public float getConstantMax() {
+		return constantMax;
+	}
+
+	/**
+	 * Set the maximum spring constant.
+	 * 
+	 * @param s
+	 *            Maximum spring constant
+	 */
+	public void setConstantMax(float s) {
+		constantMax = s;
+	}
+}
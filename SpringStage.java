@@ -0,0 +1,17 @@
+package art2;
+
+/**
+ * Pulls each MovingThing towards its connections with springs.
+ */
+public class SpringStage extends ForceStage {
+	/**
+	 * Create a new SpringStage.
+	 */
+	public SpringStage() {
+		super("spring");
+	}
+
+	public void apply(Flock f, MovingThing m, int i) {
+		m.applySpringForces();
+	}
+}
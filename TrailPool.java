@@ -0,0 +1,121 @@
+package art2;
+
+import java.util.Arrays;
+
+/**
+ * Quantized previous positions of many MovingThings kept in one shared array,
+ * so that no MovingThing pays for an array of its own. Every slot holds the
+ * same number of positions at two bytes each, and a Flock gives each of its
+ * MovingThings one slot. See MovingThing.setQuantizedHistory().
+ */
+public class TrailPool {
+	// Positions per slot, and bytes per slot
+	private final int length;
+	private final int stride;
+
+	private byte[] data;
+	// Slots handed out so far, including freed ones
+	private int numSlots;
+	// Freed slots waiting to be handed out again
+	private int[] free;
+	private int numFree;
+
+	/**
+	 * Create a new TrailPool.
+	 * 
+	 * @param length
+	 *            Number of previous positions in each slot, at least 2
+	 * @param capacity
+	 *            Number of slots to make room for at first
+	 */
+	public TrailPool(int length, int capacity) {
+		if (length < 2) {
+			throw new IllegalArgumentException("History length must be at least 2: " + length);
+		}
+		this.length = length;
+		stride = 2 * length;
+		data = new byte[stride * Math.max(capacity, 1)];
+		numSlots = 0;
+		free = new int[16];
+		numFree = 0;
+	}
+
+	/**
+	 * Hand out a slot, reusing a freed one if there is one and growing the
+	 * pool if not.
+	 * 
+	 * @return Index of the slot
+	 */
+	int allocate() {
+		if (numFree > 0) {
+			return free[--numFree];
+		}
+		int slot = numSlots++;
+		if (numSlots * stride > data.length) {
+			data = Arrays.copyOf(data, Math.max(data.length * 2, numSlots * stride));
+		}
+		return slot;
+	}
+
+	/**
+	 * Give a slot back to be handed out again.
+	 * 
+	 * @param slot
+	 *            Index of the slot
+	 */
+	void release(int slot) {
+		if (numFree == free.length) {
+			free = Arrays.copyOf(free, numFree * 2);
+		}
+		free[numFree++] = slot;
+	}
+
+	/**
+	 * 
+	 * @param slot
+	 *            Index of the slot
+	 * @param i
+	 *            Index of the byte within the slot
+	 * @return The byte
+	 */
+	byte get(int slot, int i) {
+		return data[slot * stride + i];
+	}
+
+	/**
+	 * 
+	 * @param slot
+	 *            Index of the slot
+	 * @param i
+	 *            Index of the byte within the slot
+	 * @param b
+	 *            New value of the byte
+	 */
+	void set(int slot, int i, byte b) {
+		data[slot * stride + i] = b;
+	}
+
+	/**
+	 * 
+	 * @return Number of previous positions in each slot
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * 
+	 * @return Number of slots in use
+	 */
+	public int size() {
+		return numSlots - numFree;
+	}
+
+	/**
+	 * 
+	 * @return Bytes of position data allocated, including room not yet used
+	 */
+	public int getBytes() {
+		return data.length;
+	}
+}